@@ -0,0 +1,96 @@
+package sorting;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sorting.Benchmark.Load;
+
+/**
+ * JMH benchmark of the {@link Sorter} implementations, parameterized by sorter, size ({@link Load})
+ * and {@link InputDistribution}. The thread count is set when running it (see {@link SorterBenchmarkRunner}).<br>
+ * <br>
+ * Every invocation sorts a copy of the same input, which is copied into a preallocated array
+ * so the benchmark itself does not allocate, {@link #copyOnly(Input)} measures the copy alone.
+ * Every thread has its own sorter instance, since some sorters keep the array in a field.
+ * The sorted array is returned (and thereby consumed by JMH) and checked after every iteration.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SorterBenchmark {
+
+	@State(Scope.Thread)
+	public static class Input {
+
+		@Param({"SMALL", "MEDIUM", "LARGE"})
+		public String load;
+
+		@Param({"RANDOM", "SORTED", "REVERSED", "NEARLY_SORTED", "FEW_UNIQUE", "SAWTOOTH", "ORGAN_PIPE"})
+		public String distribution;
+
+		@Param("42")
+		public long seed;
+
+		private int[] input, array;
+
+		@Setup(Level.Trial)
+		public void generate() {
+			input = InputDistribution.valueOf(distribution).generate(Load.valueOf(load).load, seed);
+			array = new int[input.length];
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class SorterState {
+
+		@Param({"QuickSort", "BottomUpMergeSort", "CubeSort", "ParallelMergeSort", "RadixSort", "ParallelRadixSort", "DualPivotIntroSort", "AdaptiveMergeSort"})
+		public String sorter;
+
+		private Sorter instance;
+
+		@Setup(Level.Trial)
+		public void createSorter() throws ReflectiveOperationException {
+			instance = (Sorter) Class.forName("sorting." + sorter).getDeclaredConstructor().newInstance();
+		}
+
+		@TearDown(Level.Iteration)
+		public void verify(Input input) {
+			for (int i = 1; i < input.array.length; i++) {
+				if (input.array[i - 1] > input.array[i]) {
+					throw new IllegalStateException(sorter + " did not sort the array, index " + i);
+				}
+			}
+		}
+
+	}
+
+	@Benchmark
+	public int[] sort(Input input, SorterState sorter) {
+		System.arraycopy(input.input, 0, input.array, 0, input.input.length);
+		sorter.instance.sort(input.array);
+		return input.array;
+	}
+
+	@Benchmark
+	public int[] copyOnly(Input input) {
+		System.arraycopy(input.input, 0, input.array, 0, input.input.length);
+		return input.array;
+	}
+
+}
@@ -0,0 +1,53 @@
+package sorting;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link SorterBenchmark} for every thread count with the GC profiler (allocation rate per sort)
+ * and writes the results as JSON.<br>
+ * The quadratic CubeSort is only run on the SMALL load.<br>
+ * <br>
+ * Needs jmh-core and jmh-generator-annprocess (annotation processor) on the classpath, e.g.:<br>
+ * <code>javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d out src/sorting/*.java jmh/src/sorting/*.java</code><br>
+ * <code>java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar sorting.SorterBenchmarkRunner 1,4</code><br>
+ * Single configurations can also be run with the JMH command line (<code>org.openjdk.jmh.Main SorterBenchmark -p load=LARGE -t 4</code>).
+ */
+public class SorterBenchmarkRunner {
+
+	/**
+	 * Args:<br>
+	 * [0] = thread counts, comma separated (default: 1 and the number of cores)	<br>
+	 * [1] = prefix of the result files (default: "sorting-jmh")				<br>
+	 */
+	public static void main(String[] args) throws RunnerException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		String threadCounts = args.length > 0 ? args[0] : (cores > 1 ? "1," + cores : "1");
+		String resultPrefix = args.length > 1 ? args[1] : "sorting-jmh";
+
+		for (String threadCount : threadCounts.split(",")) {
+			int threads = Integer.parseInt(threadCount.trim());
+			run(SorterBenchmark.class.getName() + "\\.", threads, resultPrefix + "-" + threads + "threads.json",
+					new String[] {"QuickSort", "BottomUpMergeSort", "ParallelMergeSort", "RadixSort", "ParallelRadixSort", "DualPivotIntroSort", "AdaptiveMergeSort"}, new String[] {"SMALL", "MEDIUM", "LARGE"});
+			run(SorterBenchmark.class.getName() + "\\.sort$", threads, resultPrefix + "-" + threads + "threads-cubesort.json",
+					new String[] {"CubeSort"}, new String[] {"SMALL"});
+		}
+	}
+
+	private static void run(String include, int threads, String resultFile, String[] sorters, String[] loads) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.param("sorter", sorters)
+				.param("load", loads)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile);
+		new Runner(options.build()).run();
+	}
+
+}
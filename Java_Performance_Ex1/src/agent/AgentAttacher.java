@@ -0,0 +1,41 @@
+package agent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Attaches the {@link HotMethodAgent} to (or detaches it from) a running JVM.<br>
+ * Uses the Attach API through reflection, since it is not on the default class path of Java 8:
+ * start with <code>-cp agent.jar:$JAVA_HOME/lib/tools.jar</code> there.
+ */
+public class AgentAttacher {
+	
+	/**
+	 * Args:<br>
+	 * [0] = process id of the JVM										<br>
+	 * [1] = path of agent.jar											<br>
+	 * [2] = agent arguments (see {@link AgentOptions}), "detach" or "flamegraph"		<br>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: AgentAttacher <pid> <agent.jar> <agent arguments|" + HotMethodAgent.DETACH + "|" + HotMethodAgent.FLAME_GRAPH + ">");
+			return;
+		}
+		
+		Class<?> virtualMachine = Class.forName("com.sun.tools.attach.VirtualMachine");
+		Method attach = virtualMachine.getMethod("attach", String.class);
+		Method loadAgent = virtualMachine.getMethod("loadAgent", String.class, String.class);
+		Method detach = virtualMachine.getMethod("detach");
+		
+		try {
+			Object vm = attach.invoke(null, args[0]);
+			try {
+				loadAgent.invoke(vm, args[1], args[2]);
+			} finally {
+				detach.invoke(vm);
+			}
+		} catch (InvocationTargetException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the argument String that is passed to the {@link HotMethodAgent}.<br>
+ * Format: <code>package:Class1,Class2;package2:Class3;option=value;...</code><br>
+ * <br>
+ * Sections containing a '=' are options, all other sections specify the classes to instrument.
+ * Class names may end with a wildcard (e.g. <code>sorting:*</code>, see {@link ClassFilter}),
+ * a section can also be a single pattern (e.g. <code>sorting.**</code>).
+ * Sections starting with '!' specify classes that are excluded (e.g. <code>!sorting:CubeSort</code>).<br>
+ * Supported options:<br>
+ * <b>mode</b> = trace (default) | fast<br>
+ * &nbsp;&nbsp;&nbsp;trace: every call is formatted and written to the runtime log.<br>
+ * &nbsp;&nbsp;&nbsp;fast: calls are only recorded as (method id, wall time, cpu time) events in per-thread buffers,
+ * no runtime log is written.<br>
+ * <b>instrument</b> = callsite (default) | method<br>
+ * &nbsp;&nbsp;&nbsp;callsite: every call in an included class is tracked, the caller is known.<br>
+ * &nbsp;&nbsp;&nbsp;method: the methods of the included classes track themselves from entry to exit,
+ * the code only grows once per method instead of once per call site. Constructors are tracked after this()/super().<br>
+ * <b>args</b> = true | false (default)<br>
+ * &nbsp;&nbsp;&nbsp;Fast mode only: whether argument values of calls are captured, which boxes them into a new array per call
+ * (the trace mode always logs them). The arguments of the slowest call of each method are printed with the statistics,
+ * they are only formatted then.<br>
+ * <b>trace</b> = file name (default: none)<br>
+ * &nbsp;&nbsp;&nbsp;Fast mode only: writes all events into a binary trace file (see {@link BinaryTraceWriter}).<br>
+ * <b>flameGraph</b> = file prefix (default: none)<br>
+ * &nbsp;&nbsp;&nbsp;Builds call-path trees and writes them with the statistics as &lt;prefix&gt;.collapsed and &lt;prefix&gt;.html
+ * (see {@link FlameGraphWriter}).<br>
+ * <b>sample</b> = N (default: off)<br>
+ * &nbsp;&nbsp;&nbsp;Only every N-th invocation of a call site by a thread is tracked, statistics are scaled accordingly.<br>
+ * <b>sampleInterval</b> = microseconds (default: off, ignored if <b>sample</b> is set)<br>
+ * &nbsp;&nbsp;&nbsp;An invocation of a call site is only tracked if the last one tracked in the same thread was at least this long ago.<br>
+ * <b>clock</b> = both (default) | wall | threshold | sampled<br>
+ * &nbsp;&nbsp;&nbsp;When the cpu time of the thread is read in addition to the wall time (see {@link ClockSource}).<br>
+ * <b>cpuThreshold</b> = microseconds (default 100)<br>
+ * &nbsp;&nbsp;&nbsp;clock=threshold: minimum average wall time of a method for its cpu time to be read.<br>
+ * <b>cpuSample</b> = N (default 16)<br>
+ * &nbsp;&nbsp;&nbsp;clock=sampled: the cpu time is read for every N-th call of a thread.<br>
+ * <b>calibrate</b> = true | false (default)<br>
+ * &nbsp;&nbsp;&nbsp;Measures the time an empty tracked call reports in the active mode before the program starts
+ * and subtracts it from every call in the statistics.<br>
+ * <b>jmx</b> = true | false (default)<br>
+ * &nbsp;&nbsp;&nbsp;Registers the {@link LiveMetrics} MBean, which provides the statistics while the program runs.<br>
+ * <b>metricsPort</b> = port (default: none)<br>
+ * &nbsp;&nbsp;&nbsp;Serves the {@link LiveMetrics} as JSON and in the Prometheus text format on localhost.<br>
+ * <b>logBuffer</b> = number of events (default 65536)<br>
+ * &nbsp;&nbsp;&nbsp;Size of the ring buffer between the instrumented threads and the runtime log writer thread.<br>
+ * <b>logPolicy</b> = block (default) | drop<br>
+ * &nbsp;&nbsp;&nbsp;What an instrumented thread does when the runtime log buffer is full.
+ */
+public class AgentOptions {
+
+	public static final String MODE_TRACE = "trace", MODE_FAST = "fast";
+	public static final String INSTRUMENT_CALL_SITES = "callsite", INSTRUMENT_METHODS = "method";
+	public static final String LOG_POLICY_BLOCK = "block", LOG_POLICY_DROP = "drop";
+
+	protected final List<String> includedClasses, excludedClasses;
+	protected final Map<String, String> options;
+
+	public AgentOptions(String args) {
+		List<String> includedClasses = new ArrayList<>();
+		List<String> excludedClasses = new ArrayList<>();
+		Map<String, String> options = new HashMap<>();
+
+		if (args != null) {
+			for (String p : args.split(";")) {
+				if (p.isEmpty()) continue;
+
+				int equalsIndex = p.indexOf('=');
+				if (equalsIndex >= 0) {
+					options.put(p.substring(0, equalsIndex).trim(), p.substring(equalsIndex + 1).trim());
+					continue;
+				}
+
+				List<String> classes = includedClasses;
+				if (p.startsWith("!")) {
+					classes = excludedClasses;
+					p = p.substring(1);
+				}
+				int colonIndex = p.indexOf(':');
+				if (colonIndex < 0) {
+					classes.add(p);
+					continue;
+				}
+				String packageName = p.substring(0, colonIndex);
+				String classesString = p.substring(colonIndex + 1);
+				for (String className : classesString.split(",")) {
+					classes.add(packageName + "." + className);
+				}
+			}
+		}
+		this.includedClasses = Collections.unmodifiableList(includedClasses);
+		this.excludedClasses = Collections.unmodifiableList(excludedClasses);
+		this.options = Collections.unmodifiableMap(options);
+	}
+
+	/**
+	 * @return class names or patterns (see {@link ClassFilter}) of the classes to instrument
+	 */
+	public List<String> getIncludedClasses() {
+		return includedClasses;
+	}
+	
+	/**
+	 * @return class names or patterns (see {@link ClassFilter}) of the classes that must not be instrumented
+	 */
+	public List<String> getExcludedClasses() {
+		return excludedClasses;
+	}
+
+	public String get(String option, String defaultValue) {
+		String value = options.get(option);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBoolean(String option, boolean defaultValue) {
+		String value = options.get(option);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public int getInt(String option, int defaultValue) {
+		String value = options.get(option);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public boolean isFastMode() {
+		return MODE_FAST.equals(get("mode", MODE_TRACE));
+	}
+
+	public boolean isInstrumentingMethods() {
+		return INSTRUMENT_METHODS.equals(get("instrument", INSTRUMENT_CALL_SITES));
+	}
+	
+	public boolean isCapturingArguments() {
+		return getBoolean("args", false);
+	}
+
+	public String getTraceFile() {
+		return get("trace", null);
+	}
+
+	public String getFlameGraphFile() {
+		return get("flameGraph", null);
+	}
+	
+	public long getSampleRate() {
+		return getInt("sample", 0);
+	}
+
+	public long getSampleIntervalMicros() {
+		return getInt("sampleInterval", 0);
+	}
+
+	public String getClock() {
+		return get("clock", ClockSource.BOTH);
+	}
+
+	public long getCPUThresholdMicros() {
+		return getInt("cpuThreshold", 100);
+	}
+
+	public int getCPUSampleInterval() {
+		return getInt("cpuSample", 16);
+	}
+
+	public boolean isCalibrating() {
+		return getBoolean("calibrate", false);
+	}
+
+	public boolean isRegisteringMBean() {
+		return getBoolean("jmx", false);
+	}
+
+	public int getMetricsPort() {
+		return getInt("metricsPort", 0);
+	}
+
+	public int getLogBufferSize() {
+		return getInt("logBuffer", 1 << 16);
+	}
+
+	public boolean isBlockingWhenLogBufferFull() {
+		return !LOG_POLICY_DROP.equals(get("logPolicy", LOG_POLICY_BLOCK));
+	}
+
+}
@@ -0,0 +1,188 @@
+package agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the runtime log of the trace mode from a background thread, so that I/O latency does not leak into the
+ * measured times of the instrumented threads.<br>
+ * <br>
+ * Instrumented threads only put the log event into a lock-free ring buffer (multiple producers, single consumer).
+ * The writer thread formats the events and writes them in large batches to the channel.
+ * If the ring buffer is full, a producer either waits for free space or drops the event (see {@link AgentOptions}).<br>
+ * After {@link #close()} all events are dropped, so threads that still run during shutdown cannot keep the writer busy.
+ */
+public class AsyncLogWriter extends Thread {
+
+	private static final int BATCH_SIZE = 1 << 16;	//characters
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private final WritableByteChannel channel;
+	private final int capacity, mask;
+	private final boolean blockWhenFull;
+
+	//ring buffer, slot of a sequence number is (sequence & mask)
+	private final AtomicLong claimed = new AtomicLong(0);	//next sequence number a producer claims
+	private volatile long consumed = 0;						//all sequence numbers below have been written
+	private final AtomicLongArray published;				//sequence number of the event that was last published in a slot
+	private final boolean[] exits;
+	private final int[] methodIds;
+	private final String[] argStrings, returnValues, exceptions;
+	private final long[] wallTimesPassed, cpuTimesPassed;
+
+	private final AtomicLong droppedEvents = new AtomicLong(0);
+	private volatile boolean closed = false;
+	private volatile long endSequence = Long.MAX_VALUE;	//set by close(), events claimed after it are dropped
+
+	/**
+	 * @param capacity - number of events the ring buffer can hold, is rounded up to a power of two
+	 * @param blockWhenFull - whether producers wait (true) or drop the event (false) when the buffer is full
+	 */
+	public AsyncLogWriter(WritableByteChannel channel, int capacity, boolean blockWhenFull) {
+		super("HotMethodAgent-LogWriter");
+		this.channel = channel;
+		this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.mask = this.capacity - 1;
+		this.blockWhenFull = blockWhenFull;
+
+		published = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			published.set(i, -1);
+		}
+		exits = new boolean[this.capacity];
+		methodIds = new int[this.capacity];
+		argStrings = new String[this.capacity];
+		returnValues = new String[this.capacity];
+		exceptions = new String[this.capacity];
+		wallTimesPassed = new long[this.capacity];
+		cpuTimesPassed = new long[this.capacity];
+
+		setDaemon(true);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	public void logEntry(int methodId, String argString) {
+		long sequence = claim();
+		if (sequence < 0) return;
+		int slot = (int) (sequence & mask);
+		exits[slot] = false;
+		methodIds[slot] = methodId;
+		argStrings[slot] = argString;
+		published.lazySet(slot, sequence);
+	}
+
+	/**
+	 * @param returnValue - String representation of the return value or null if none should be logged
+	 * @param exception - class name of the exception the call threw, or null if it returned normally
+	 */
+	public void logExit(int methodId, String argString, String returnValue, String exception, long wallTimePassed, long cpuTimePassed) {
+		long sequence = claim();
+		if (sequence < 0) return;
+		int slot = (int) (sequence & mask);
+		exits[slot] = true;
+		methodIds[slot] = methodId;
+		argStrings[slot] = argString;
+		returnValues[slot] = returnValue;
+		exceptions[slot] = exception;
+		wallTimesPassed[slot] = wallTimePassed;
+		cpuTimesPassed[slot] = cpuTimePassed;
+		published.lazySet(slot, sequence);
+	}
+
+	/**
+	 * @return the claimed sequence number or -1 if the buffer is full or closed and the event has to be dropped
+	 */
+	private long claim() {
+		while (true) {
+			long sequence = claimed.get();
+			if (closed) return -1;	//read after the sequence, so a claim racing with close() fails its compareAndSet
+			if (sequence - consumed >= capacity) {
+				if (!blockWhenFull) {
+					droppedEvents.incrementAndGet();
+					return -1;
+				}
+				LockSupport.parkNanos(1000);
+			}
+			else if (claimed.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		StringBuilder batch = new StringBuilder(2 * BATCH_SIZE);
+		while (true) {
+			long sequence = consumed;
+			int slot = (int) (sequence & mask);
+			if (published.get(slot) == sequence) {
+				format(batch, slot);
+				argStrings[slot] = returnValues[slot] = null;
+				consumed = sequence + 1;
+				if (batch.length() >= BATCH_SIZE) write(batch);
+			}
+			else if (batch.length() > 0) {	//no more events at the moment
+				write(batch);
+			}
+			else if (sequence >= endSequence) {
+				break;
+			}
+			else {
+				LockSupport.parkNanos(100000);
+			}
+		}
+		if (droppedEvents.get() > 0) {
+			batch.append(String.format("%d log events were dropped because the log buffer was full.%n", droppedEvents.get()));
+			write(batch);
+		}
+	}
+
+	private void format(StringBuilder batch, int slot) {
+		int methodId = methodIds[slot];
+		String callSite = MethodRegistry.getCallSite(methodId);
+		String calledMethod = String.format("%s(%s)", HotMethodLogger.getSimpleMethodName(MethodRegistry.getCalledMethod(methodId)), argStrings[slot]);
+		if (exits[slot]) {
+			batch.append(String.format("%-50s <---- %50s [wall = %.2fms, cpu = %.2fms%s%s]%n",
+					callSite, calledMethod,
+					(double) wallTimesPassed[slot] / HotMethodStatistics.nanosToMillis, (double) cpuTimesPassed[slot] / HotMethodStatistics.nanosToMillis,
+					returnValues[slot] == null ? "" : ", ret=" + returnValues[slot],
+					exceptions[slot] == null ? "" : ", threw=" + exceptions[slot]));
+		}
+		else {
+			batch.append(String.format("%-50s ----> %50s%n", callSite, calledMethod));
+		}
+	}
+
+	private void write(StringBuilder batch) {
+		ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes());
+		batch.setLength(0);
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the events claimed so far and stops the writer thread, waits at most {@value #CLOSE_TIMEOUT_MILLIS}ms for it.
+	 */
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			endSequence = claimed.getAndIncrement();	//no claim can succeed afterwards
+		}
+		try {
+			join(CLOSE_TIMEOUT_MILLIS);
+			if (!isAlive()) channel.close();
+		} catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
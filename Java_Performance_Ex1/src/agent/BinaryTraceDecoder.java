@@ -0,0 +1,163 @@
+package agent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reconstructs the text view of the runtime log or the statistics from a trace written by the {@link BinaryTraceWriter}.
+ */
+public class BinaryTraceDecoder {
+
+	/**
+	 * Args:<br>
+	 * [0] = trace file													<br>
+	 * [1] = "text" (default), "statistics" or "collapsed" (call-path stacks, see {@link FlameGraphWriter}),
+	 *       output is printed to System.out	<br>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: BinaryTraceDecoder <trace file> [text|statistics|collapsed]");
+			return;
+		}
+		boolean printText = args.length < 2 || args[1].equals("text");
+
+		BinaryTraceDecoder decoder = new BinaryTraceDecoder(args[0]);
+		decoder.decode(printText ? System.out : null);
+		if (args.length >= 2 && args[1].equals("statistics")) {
+			HotMethodStatistics.printStatistics(System.out, decoder.threadStatistics.values(), null);
+		}
+		else if (args.length >= 2 && args[1].equals("collapsed")) {
+			CallTreeNode callTree = new CallTreeNode(-1, null);
+			for (ThreadStatistics statistics : decoder.threadStatistics.values()) {
+				callTree.merge(statistics.callTree);
+			}
+			new FlameGraphWriter(callTree).writeCollapsed(System.out);
+		}
+		System.out.flush();
+	}
+
+	private final ByteBuffer in;
+	private int[] registryIds = new int[256];	//method id in the trace -> method id in the MethodRegistry
+	private final Map<Long, ThreadStatistics> threadStatistics = new LinkedHashMap<>();
+	private final Map<Long, ArrayDeque<long[]>> openCalls = new HashMap<>();	//per thread: {methodId, wallTime, cpuTime, childWallTime, childCPUTime}
+
+	/**
+	 * Traces larger than 2GB are not supported since the file is mapped as a single buffer.
+	 */
+	public BinaryTraceDecoder(String fileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (in.getInt() != BinaryTraceWriter.MAGIC) {
+			throw new IOException(fileName + " is not a binary trace");
+		}
+	}
+
+	/**
+	 * Decodes the whole trace into the statistics.
+	 * @param textOut - if not null, the text view of the trace is printed to it
+	 */
+	public void decode(PrintStream textOut) throws IOException {
+		long lastThreadID = -1;
+		while (in.hasRemaining()) {
+			byte recordType = in.get();
+			switch (recordType) {
+			case BinaryTraceWriter.END_OF_TRACE:
+				return;
+			case BinaryTraceWriter.METHOD_RECORD:
+				int methodId = (int) readVarLong();
+				if (methodId >= registryIds.length) {
+					registryIds = Arrays.copyOf(registryIds, Math.max(2 * registryIds.length, methodId + 1));
+				}
+				registryIds[methodId] = MethodRegistry.getMethodId(readString(), readString());
+				break;
+			case BinaryTraceWriter.EVENT_BLOCK:
+				long threadID = readVarLong();
+				if (textOut != null && threadID != lastThreadID) {
+					textOut.printf("-------> Thread %d%n", threadID);
+				}
+				lastThreadID = threadID;
+				decodeEvents(threadID, textOut);
+				break;
+			default:
+				throw new IOException("Unknown record type " + recordType + " at position " + (in.position() - 1));
+			}
+		}
+	}
+
+	private void decodeEvents(long threadID, PrintStream textOut) {
+		ThreadStatistics statistics = threadStatistics.computeIfAbsent(threadID, ThreadStatistics::new);
+		ArrayDeque<long[]> calls = openCalls.computeIfAbsent(threadID, k -> new ArrayDeque<>());
+
+		long count = readVarLong();
+		long wallTime = 0, cpuTime = 0;
+		for (long i = 0; i < count; i++) {
+			long event = readVarLong();
+			wallTime += unzigzag(readVarLong());
+			cpuTime += unzigzag(readVarLong());
+			int methodId = registryIds[(int) (event >>> 1)];
+			boolean isExit = (event & 1) != 0;
+
+			if (!isExit) {
+				calls.push(new long[] {methodId, wallTime, cpuTime, 0, 0});
+				statistics.enterMethod(methodId);
+				if (textOut != null) {
+					textOut.printf("%-50s ----> %50s%n", MethodRegistry.getCallSite(methodId), getSimpleMethodName(methodId));
+				}
+			}
+			else if (!calls.isEmpty()) {
+				long[] call = calls.pop();
+				long wallTimePassed = wallTime - call[1], cpuTimePassed = cpuTime - call[2];
+				statistics.recordMethodCall(methodId, wallTimePassed, cpuTimePassed, wallTimePassed - call[3], cpuTimePassed - call[4]);
+				long[] caller = calls.peek();
+				if (caller != null) {
+					caller[3] += wallTimePassed;
+					caller[4] += cpuTimePassed;
+				}
+				statistics.exitMethod(wallTimePassed, cpuTimePassed);
+				if (textOut != null) {
+					textOut.printf("%-50s <---- %50s [wall = %.2fms, cpu = %.2fms]%n",
+							MethodRegistry.getCallSite(methodId), getSimpleMethodName(methodId),
+							(double) wallTimePassed / HotMethodStatistics.nanosToMillis, (double) cpuTimePassed / HotMethodStatistics.nanosToMillis);
+				}
+			}
+		}
+	}
+
+	private static String getSimpleMethodName(int methodId) {
+		String calledMethod = MethodRegistry.getCalledMethod(methodId);
+		return calledMethod.substring(calledMethod.lastIndexOf('.') + 1) + "()";
+	}
+
+	// --------- Decoding ---------
+
+	private long readVarLong() {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) return value;
+		}
+	}
+
+	private String readString() {
+		byte[] bytes = new byte[(int) readVarLong()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -0,0 +1,141 @@
+package agent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Writes the events of the fast mode into a compact binary trace file through memory-mapped regions.<br>
+ * The trace can be converted to text or statistics with the {@link BinaryTraceDecoder}.<br>
+ * <br>
+ * Format (all numbers are unsigned LEB128 varints, signed values are zigzag encoded):<br>
+ * <code>header: MAGIC (4 bytes)</code><br>
+ * <code>method record: METHOD_RECORD, methodId, callSite, calledMethod</code> (strings: byte length + UTF-8)<br>
+ * <code>event block: EVENT_BLOCK, threadID, eventCount, (methodId &lt;&lt; 1 | isExit, wallTimeDelta, cpuTimeDelta) * eventCount</code><br>
+ * <code>end: END_OF_TRACE</code><br>
+ * The timestamps of an event are stored as difference to the previous event of the block (the first one to 0).
+ * A method record is written before the first event block that uses its method id.
+ */
+public class BinaryTraceWriter {
+
+	public static final int MAGIC = 0x484D5431;	//"HMT1"
+	public static final byte END_OF_TRACE = 0, METHOD_RECORD = 1, EVENT_BLOCK = 2;
+
+	private static final int MAPPING_SIZE = 1 << 25;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer mapping;
+	private long mappingPosition = 0;
+
+	private final BitSet writtenMethodIds = new BitSet();
+	private byte[] block = new byte[1 << 16];
+	private int blockSize = 0;
+
+	public BinaryTraceWriter(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAPPING_SIZE);
+		mapping.putInt(MAGIC);
+	}
+
+	/**
+	 * Writes one block of events of a thread.<br>
+	 * methodIds are encoded like in the {@link CallEventBuffer}: entries as the id, exits as the complement of the id.
+	 */
+	public synchronized void writeEvents(long threadID, int[] methodIds, long[] wallTimes, long[] cpuTimes, int count) {
+		if (mapping == null) return;	//already closed
+		blockSize = 0;
+		for (int i = 0; i < count; i++) {
+			int methodId = methodIds[i] >= 0 ? methodIds[i] : ~methodIds[i];
+			if (!writtenMethodIds.get(methodId)) {
+				writtenMethodIds.set(methodId);
+				writeByte(METHOD_RECORD);
+				writeVarLong(methodId);
+				writeString(MethodRegistry.getCallSite(methodId));
+				writeString(MethodRegistry.getCalledMethod(methodId));
+			}
+		}
+
+		writeByte(EVENT_BLOCK);
+		writeVarLong(threadID);
+		writeVarLong(count);
+		long previousWallTime = 0, previousCPUTime = 0;
+		for (int i = 0; i < count; i++) {
+			int methodId = methodIds[i];
+			writeVarLong(methodId >= 0 ? (long) methodId << 1 : ((long) ~methodId << 1) | 1);
+			writeVarLong(zigzag(wallTimes[i] - previousWallTime));
+			writeVarLong(zigzag(cpuTimes[i] - previousCPUTime));
+			previousWallTime = wallTimes[i];
+			previousCPUTime = cpuTimes[i];
+		}
+
+		try {
+			reserve(blockSize);
+			mapping.put(block, 0, blockSize);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the end marker and truncates the file to its actual length.
+	 */
+	public synchronized void close() {
+		if (mapping == null) return;
+		try {
+			reserve(1);
+			mapping.put(END_OF_TRACE);
+			long length = mappingPosition + mapping.position();
+			mapping.force();
+			mapping = null;
+			channel.truncate(length);
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Maps a new region of the file if the current one has not enough space left.
+	 */
+	private void reserve(int bytes) throws IOException {
+		if (mapping.remaining() >= bytes) return;
+		mappingPosition += mapping.position();
+		mapping.force();
+		mapping = channel.map(FileChannel.MapMode.READ_WRITE, mappingPosition, Math.max(MAPPING_SIZE, bytes));
+	}
+
+	// --------- Encoding ---------
+
+	private void writeByte(int b) {
+		if (blockSize == block.length) block = Arrays.copyOf(block, 2 * block.length);
+		block[blockSize++] = (byte) b;
+	}
+
+	private void writeVarLong(long value) {
+		while ((value & ~0x7FL) != 0) {
+			writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		writeByte((int) value);
+	}
+
+	private void writeString(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		for (byte b : bytes) {
+			writeByte(b);
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+}
@@ -87,6 +87,90 @@ public class BytecodeHelper {
 		// [ <args>, array
 	}
 	
+	/**
+	 * Pushes an Object-array on the stack with the argument values of the current method, read from its local variables.<br>
+	 * Stack before:<br>
+	 * [<br>
+	 * Stack after:<br>
+	 * [ argsObjectArray
+	 * @param firstLocal - index of the local variable that holds the first argument (0 for static methods, else 1)
+	 */
+	public void pushArgumentsArrayFromLocals(List<String> argTypes, int firstLocal) {
+		code.addIconst(argTypes.size());
+		code.addAnewarray("java.lang.Object");
+		// [ array
+		int local = firstLocal;
+		for (int i = 0; i < argTypes.size(); i++) {
+			String type = argTypes.get(i);
+			code.add(Opcode.DUP);
+			code.addIconst(i);
+			// [ array, array, index
+			loadLocal(type, local);
+			wrapPrimitiveWithReference(type);
+			// [ array, array, index, arg (Object)
+			code.add(Opcode.AASTORE);
+			// [ array
+			local += isLongOrDouble(type) ? 2 : 1;
+		}
+	}
+	
+	/**
+	 * Pushes the local variable with the given type descriptor on the stack.
+	 */
+	public void loadLocal(String type, int local) {
+		switch (type.charAt(0)) {
+			case 'J':
+				code.addLload(local);
+				break;
+			case 'F':
+				code.addFload(local);
+				break;
+			case 'D':
+				code.addDload(local);
+				break;
+			case 'L':
+			case '[':
+				code.addAload(local);
+				break;
+			default: // B, S, I, Z, C
+				code.addIload(local);
+				break;
+		}
+	}
+	
+	/**
+	 * Counts the invocation of the call site and pushes 0 if this invocation should be sampled
+	 * (the logger decides per thread, see {@link ThreadStatistics#isSampled(int, long, long)}).<br>
+	 * Stack before:<br>
+	 * [<br>
+	 * Stack after:<br>
+	 * [ skipFlag (int, 0 = sample)
+	 */
+	public void pushSampleSkipFlag(String loggerClassName, int methodId) {
+		// [
+		code.addIconst(methodId);
+		code.addInvokestatic(loggerClassName, "skipSample", "(I)Z");
+		// [ !sampled
+	}
+	
+	/**
+	 * Adds a branch instruction whose target is set later by {@link #setBranchTarget(int)}.
+	 * @return the position of the branch instruction
+	 */
+	public int addBranch(int branchOpcode) {
+		int position = code.currentPc();
+		code.addOpcode(branchOpcode);
+		code.addIndex(0);
+		return position;
+	}
+	
+	/**
+	 * Sets the target of the branch at branchPosition to the current end of the code.
+	 */
+	public void setBranchTarget(int branchPosition) {
+		code.write16bit(branchPosition + 1, code.currentPc() - branchPosition);
+	}
+	
 	/**
 	 * Returns true if typeDescriptor is "J" or "D"
 	 */
@@ -162,39 +246,42 @@ public class BytecodeHelper {
 		switch(primitiveType) {
 			case "B":
 				//we stored value in java/lang/Object array, so we need to cast objRef back to actual type
-				code.addCheckcast("Ljava/lang/Byte;");
+				code.addCheckcast("java.lang.Byte");
 				code.addInvokevirtual("java.lang.Byte", "byteValue", "()B");
 				break;
 			case "S":
-				code.addCheckcast("Ljava/lang/Short;");
+				code.addCheckcast("java.lang.Short");
 				code.addInvokevirtual("java.lang.Short", "shortValue", "()S");
 				break;
 			case "I":
-				code.addCheckcast("Ljava/lang/Integer;");
+				code.addCheckcast("java.lang.Integer");
 				code.addInvokevirtual("java.lang.Integer", "intValue", "()I");
 				break;
 			case "J":
-				code.addCheckcast("Ljava/lang/Long;");
+				code.addCheckcast("java.lang.Long");
 				code.addInvokevirtual("java.lang.Long", "longValue", "()J");
 				break;
 			case "F":
-				code.addCheckcast("Ljava/lang/Float;");
+				code.addCheckcast("java.lang.Float");
 				code.addInvokevirtual("java.lang.Float", "floatValue", "()F");
 				break;
 			case "D":
-				code.addCheckcast("Ljava/lang/Double;");
+				code.addCheckcast("java.lang.Double");
 				code.addInvokevirtual("java.lang.Double", "doubleValue", "()D");
 				break;
 			case "Z":
-				code.addCheckcast("Ljava/lang/Boolean;");
+				code.addCheckcast("java.lang.Boolean");
 				code.addInvokevirtual("java.lang.Boolean", "booleanValue", "()Z");
 				break;
 			case "C":
-				code.addCheckcast("Ljava/lang/Character;");
+				code.addCheckcast("java.lang.Character");
 				code.addInvokevirtual("java.lang.Character", "charValue", "()C");
 				break;
 			default:	//non-primitive type
-				code.addCheckcast(primitiveType);
+				if (primitiveType.startsWith("L"))	//checkcast expects a class name, not a descriptor
+					code.addCheckcast(primitiveType.substring(1, primitiveType.length() - 1).replace('/', '.'));
+				else								//arrays are referenced by their descriptor
+					code.addCheckcast(primitiveType);
 				break;	
 		}
 	}
@@ -0,0 +1,177 @@
+package agent;
+
+import java.util.Arrays;
+
+/**
+ * Preallocated per-thread buffer of call events, used by the fast mode of the {@link HotMethodLogger}.<br>
+ * An event only consists of a method id (see {@link MethodRegistry}) and the wall and cpu time at which it happened.
+ * Argument values are only kept as a reference, they are never formatted on the hot path
+ * (the ones of the slowest call per method id are formatted when the statistics are printed).<br>
+ * <br>
+ * When the buffer is full the events are flushed into the {@link ThreadStatistics} of the owning thread
+ * (and into the {@link BinaryTraceWriter}, if a binary trace is written).
+ */
+public class CallEventBuffer {
+
+	public static final int CAPACITY = 1 << 14;
+
+	private final long threadID;
+	private final Thread owner = Thread.currentThread();
+	private final ThreadStatistics statistics;
+	private final boolean buildCallTree;
+	private final ClockSource clock;
+	private final BinaryTraceWriter traceWriter;
+
+	//entries are stored as the method id, exits as the complement (~) of the method id
+	private final int[] methodIds = new int[CAPACITY];
+	private final long[] wallTimes = new long[CAPACITY], cpuTimes = new long[CAPACITY];
+	private final Object[][] arguments = new Object[CAPACITY][];
+	private final Class<?>[] exceptions = new Class<?>[CAPACITY];	//exception of an exit, null for a normal return
+	private int size = 0;
+	private volatile boolean flushRequested = false;	//set by other threads that want to read the statistics
+
+	//calls whose entry was already flushed but whose exit was not yet recorded
+	private int[] openMethodIds = new int[64];
+	private long[] openWallTimes = new long[64], openCPUTimes = new long[64];
+	private long[] openChildWallTimes = new long[64], openChildCPUTimes = new long[64];	//time spent in tracked calls made by the call
+	private Object[][] openArguments = new Object[64][];
+	private int openCalls = 0;
+
+	/**
+	 * Must be created by the thread that owns the buffer.
+	 * @param traceWriter - may be null if no binary trace is written
+	 */
+	public CallEventBuffer(long threadID, HotMethodStatistics statistics, ClockSource clock, BinaryTraceWriter traceWriter) {
+		this.threadID = threadID;
+		this.statistics = statistics.getThreadStatistics();	//the last flush may be done by another thread after the owner terminated
+		this.buildCallTree = statistics.isBuildingCallTrees();
+		this.clock = clock;
+		this.traceWriter = traceWriter;
+	}
+
+	public void addEntry(int methodId, Object[] args, long wallTime, long cpuTime) {
+		if (size == CAPACITY || flushRequested) flush();
+		methodIds[size] = methodId;
+		arguments[size] = args;
+		wallTimes[size] = wallTime;
+		cpuTimes[size] = cpuTime;
+		size++;
+	}
+
+	public void addExit(int methodId, long wallTime, long cpuTime) {
+		addExit(methodId, null, wallTime, cpuTime);
+	}
+	
+	/**
+	 * @param exception - class of the exception the call threw, or null if it returned normally
+	 */
+	public void addExit(int methodId, Class<?> exception, long wallTime, long cpuTime) {
+		if (size == CAPACITY || flushRequested) flush();
+		methodIds[size] = ~methodId;
+		exceptions[size] = exception;
+		wallTimes[size] = wallTime;
+		cpuTimes[size] = cpuTime;
+		size++;
+	}
+
+	/**
+	 * Flushes the buffer if no other thread may be recording into it: the current thread owns the buffer,
+	 * or the owning thread terminated or waits in System.exit for the shutdown hooks
+	 * (other owners are asked with {@link #requestFlush()}).
+	 * @return false if the owning thread may still record and the buffer was not flushed
+	 */
+	public synchronized boolean flushIfOwnerStopped() {
+		if (isOwnerRecording() && !isOwnerExiting()) return false;
+		flush();
+		return true;
+	}
+
+	private boolean isOwnerExiting() {
+		for (StackTraceElement frame : owner.getStackTrace()) {
+			if (frame.getClassName().equals("java.lang.Shutdown")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether another thread owns the buffer and is still alive
+	 */
+	public boolean isOwnerRecording() {
+		return owner != Thread.currentThread() && owner.isAlive();
+	}
+
+	/**
+	 * Matches the buffered entries with their exits and records the durations of the completed calls in the statistics.<br>
+	 * Only called by the owning thread, see {@link #flushIfOwnerStopped()}.
+	 */
+	public void flush() {
+		if (traceWriter != null) {
+			traceWriter.writeEvents(threadID, methodIds, wallTimes, cpuTimes, size);
+		}
+		for (int i = 0; i < size; i++) {
+			int methodId = methodIds[i];
+			if (methodId >= 0) {
+				pushOpenCall(methodId, arguments[i], wallTimes[i], cpuTimes[i]);
+				arguments[i] = null;
+				if (buildCallTree) statistics.enterMethod(methodId);
+			}
+			else if (openCalls > 0) {
+				openCalls--;
+				Object[] args = openArguments[openCalls];
+				openArguments[openCalls] = null;
+				long wallTimePassed = wallTimes[i] - openWallTimes[openCalls], cpuTimePassed = cpuTimes[i] - openCPUTimes[openCalls];
+				clock.recordWallTime(~methodId, wallTimePassed);
+				//the caller's child time contains the uncorrected time, so the overhead is not counted as its self time either
+				long correctedWallTime = clock.correctWallTime(wallTimePassed), correctedCPUTime = clock.correctCPUTime(cpuTimePassed);
+				statistics.recordMethodCall(~methodId, correctedWallTime, correctedCPUTime,
+						clock.correctWallTime(wallTimePassed - openChildWallTimes[openCalls]),
+						clock.correctCPUTime(cpuTimePassed - openChildCPUTimes[openCalls]));
+				if (args != null) statistics.recordArguments(~methodId, args, correctedWallTime);
+				if (openCalls > 0) {
+					openChildWallTimes[openCalls - 1] += wallTimePassed;
+					openChildCPUTimes[openCalls - 1] += cpuTimePassed;
+				}
+				if (buildCallTree) statistics.exitMethod(correctedWallTime, correctedCPUTime);
+				if (exceptions[i] != null) {
+					statistics.recordException(~methodId, exceptions[i].getName());
+					exceptions[i] = null;
+				}
+			}
+		}
+		size = 0;
+		//cleared last: the volatile write publishes the flushed statistics to the thread waiting for the flag,
+		//a request that arrives meanwhile needs no further flush since the owner records nothing while flushing
+		flushRequested = false;
+	}
+
+	/**
+	 * Asks the owning thread to flush the buffer at its next event, used to read the statistics while the program runs.
+	 */
+	public void requestFlush() {
+		flushRequested = true;
+	}
+	
+	public boolean isFlushRequested() {
+		return flushRequested;
+	}
+
+	private void pushOpenCall(int methodId, Object[] args, long wallTime, long cpuTime) {
+		if (openCalls == openMethodIds.length) {
+			int newLength = 2 * openCalls;
+			openMethodIds = Arrays.copyOf(openMethodIds, newLength);
+			openWallTimes = Arrays.copyOf(openWallTimes, newLength);
+			openCPUTimes = Arrays.copyOf(openCPUTimes, newLength);
+			openChildWallTimes = Arrays.copyOf(openChildWallTimes, newLength);
+			openChildCPUTimes = Arrays.copyOf(openChildCPUTimes, newLength);
+			openArguments = Arrays.copyOf(openArguments, newLength);
+		}
+		openMethodIds[openCalls] = methodId;
+		openWallTimes[openCalls] = wallTime;
+		openCPUTimes[openCalls] = cpuTime;
+		openChildWallTimes[openCalls] = 0;
+		openChildCPUTimes[openCalls] = 0;
+		openArguments[openCalls] = args;
+		openCalls++;
+	}
+
+}
@@ -0,0 +1,65 @@
+package agent;
+
+import java.util.Arrays;
+
+/**
+ * Node of a call-path tree: all calls of one method id (see {@link MethodRegistry}) that happened on the same call path.<br>
+ * Times are inclusive, i.e. they contain the time of the children.
+ */
+public class CallTreeNode {
+
+	protected final int methodId;	//-1 for the root
+	protected final CallTreeNode parent;
+	protected long calls = 0, wallTime = 0, cpuTime = 0;
+
+	//children are kept in parallel arrays, there are only few per node,
+	//a grown array is only published once it is filled, so other threads never see an empty slot
+	private volatile int[] childMethodIds = new int[0];
+	private volatile CallTreeNode[] children = new CallTreeNode[0];
+
+	public CallTreeNode(int methodId, CallTreeNode parent) {
+		this.methodId = methodId;
+		this.parent = parent;
+	}
+
+	public CallTreeNode getOrAddChild(int methodId) {
+		int[] childMethodIds = this.childMethodIds;
+		for (int i = 0; i < childMethodIds.length; i++) {
+			if (childMethodIds[i] == methodId) return children[i];
+		}
+		CallTreeNode child = new CallTreeNode(methodId, this);
+		CallTreeNode[] grownChildren = Arrays.copyOf(children, childMethodIds.length + 1);
+		grownChildren[childMethodIds.length] = child;
+		int[] grownMethodIds = Arrays.copyOf(childMethodIds, childMethodIds.length + 1);
+		grownMethodIds[childMethodIds.length] = methodId;
+		children = grownChildren;
+		this.childMethodIds = grownMethodIds;
+		return child;
+	}
+
+	public void record(long wallTimePassed, long cpuTimePassed) {
+		calls++;
+		wallTime += wallTimePassed;
+		cpuTime += cpuTimePassed;
+	}
+
+	/**
+	 * Adds the counts and times of other and its subtree to this node and its subtree.
+	 */
+	public void merge(CallTreeNode other) {
+		calls += other.calls;
+		wallTime += other.wallTime;
+		cpuTime += other.cpuTime;
+		for (CallTreeNode otherChild : other.getChildren()) {
+			getOrAddChild(otherChild.methodId).merge(otherChild);
+		}
+	}
+
+	/**
+	 * May be called while the owning thread adds children (for an export on demand), the result is then a recent state.
+	 */
+	public CallTreeNode[] getChildren() {
+		return children;
+	}
+
+}
@@ -0,0 +1,117 @@
+package agent;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides which classes are instrumented, a check only takes time proportional to the length of the class name.<br>
+ * <br>
+ * Patterns are class names (e.g. "sorting.QuickSort") whose last part may end with a wildcard:<br>
+ * <code>sorting.Quick*</code> - all classes of the package sorting starting with "Quick"<br>
+ * <code>sorting.*</code> - all classes of the package sorting<br>
+ * <code>sorting.**</code> - all classes of the package sorting and its subpackages<br>
+ * A class is included if it matches an include pattern and no exclude pattern.
+ * Classes of the agent itself, of javassist and of the JDK are never included.
+ */
+public class ClassFilter {
+	
+	private static final String[] ALWAYS_EXCLUDED = { "agent.**", "javassist.**", "java.**", "javax.**", "sun.**", "jdk.**" };
+	
+	private final Trie included = new Trie(), excluded = new Trie();
+	
+	/**
+	 * @param includePatterns, excludePatterns - see class comment
+	 */
+	public ClassFilter(List<String> includePatterns, List<String> excludePatterns) {
+		for (String pattern : includePatterns) {
+			included.add(pattern);
+		}
+		for (String pattern : excludePatterns) {
+			excluded.add(pattern);
+		}
+		for (String pattern : ALWAYS_EXCLUDED) {
+			excluded.add(pattern);
+		}
+	}
+	
+	/**
+	 * @param className - name in internal form, e.g. "sorting/QuickSort"
+	 */
+	public boolean isIncluded(String className) {
+		return included.matches(className) && !excluded.matches(className);
+	}
+	
+	/**
+	 * Trie over the patterns in internal form, the wildcards are stored as flags of the node where they start.
+	 */
+	private static class Trie {
+		
+		private static final int CLASS = 1, CLASS_PREFIX = 2, PACKAGE_PREFIX = 4;
+		
+		private final Node root = new Node();
+		
+		void add(String pattern) {
+			int flag;
+			if (pattern.endsWith("**")) {
+				flag = PACKAGE_PREFIX;
+				pattern = pattern.substring(0, pattern.length() - 2);
+			}
+			else if (pattern.endsWith("*")) {
+				flag = CLASS_PREFIX;
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			else {
+				flag = CLASS;
+			}
+			
+			Node node = root;
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				node = node.getOrAddChild(c == '.' ? '/' : c);
+			}
+			node.flags |= flag;
+		}
+		
+		boolean matches(String className) {
+			int lastSlash = className.lastIndexOf('/');
+			Node node = root;
+			for (int i = 0; node != null; i++) {
+				if ((node.flags & PACKAGE_PREFIX) != 0) return true;
+				if ((node.flags & CLASS_PREFIX) != 0 && i > lastSlash) return true;
+				if (i == className.length()) return (node.flags & CLASS) != 0;
+				node = node.getChild(className.charAt(i));
+			}
+			return false;
+		}
+		
+	}
+	
+	private static class Node {
+		
+		int flags = 0;
+		//children are kept in parallel arrays, there are only few per node
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		
+		Node getChild(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) return children[i];
+			}
+			return null;
+		}
+		
+		Node getOrAddChild(char c) {
+			Node child = getChild(c);
+			if (child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,152 @@
+package agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Provides the cpu timestamps of the {@link HotMethodLogger}. Reading the cpu time of the current thread
+ * costs far more than reading the wall time, so it can be restricted (option <b>clock</b>, see {@link AgentOptions}):<br>
+ * both: the cpu time is read at entry and exit of every call.<br>
+ * wall: the cpu time is never read, cpu times are reported as 0.<br>
+ * threshold: the cpu time is only read for methods whose average wall time is at least the threshold.<br>
+ * sampled: the cpu time is only read for every N-th timestamp of a thread.<br>
+ * <br>
+ * In the last two modes every thread has a virtual cpu clock that is set to the real cpu time whenever it is read
+ * and advances with the wall time (scaled by the cpu / wall time ratio of the thread) in between,
+ * so the timestamps of nested calls stay consistent.<br>
+ * If calibrated, the time an empty tracked call reports is subtracted from every call (see {@link HotMethodLogger}).
+ */
+public class ClockSource {
+
+	public static final String BOTH = "both", WALL = "wall", THRESHOLD = "threshold", SAMPLED = "sampled";
+
+	private static final int WARMUP_CALLS = 16;					//threshold: calls of a method that are always measured
+	private static final long RATIO_INTERVAL_NANOS = 1000000;	//minimum wall time between two updates of the cpu / wall time ratio
+
+	private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private final String mode;
+	private final boolean readsCPU, readsAlways, threshold;
+	private final long thresholdNanos;
+	private final int sampleInterval;
+
+	//threshold: calls and summed wall time per method id, updated without synchronization since they are only a heuristic
+	private volatile long[] calls = new long[0], wallTimes = new long[0];
+	private final ThreadLocal<VirtualCPUClock> threadClocks = ThreadLocal.withInitial(VirtualCPUClock::new);
+
+	private volatile long wallOverheadNanos = 0, cpuOverheadNanos = 0;
+
+	public ClockSource(AgentOptions options) {
+		mode = options.getClock();
+		readsCPU = !WALL.equals(mode);
+		readsAlways = BOTH.equals(mode);
+		threshold = THRESHOLD.equals(mode);
+		thresholdNanos = options.getCPUThresholdMicros() * 1000;
+		sampleInterval = Math.max(1, options.getCPUSampleInterval());
+	}
+
+	/**
+	 * @param methodId - the tracked call, decides in the threshold mode whether the cpu time is read
+	 * @param wallTime - the wall time read right before
+	 * @return the (possibly virtual) cpu time of the current thread, 0 in the wall mode
+	 */
+	public long readCPU(int methodId, long wallTime) {
+		if (readsAlways) return threadMXBean.getCurrentThreadCpuTime();
+		if (!readsCPU) return 0;
+
+		VirtualCPUClock clock = threadClocks.get();
+		boolean read = !clock.started || (threshold ? isAboveThreshold(methodId) : clock.timestamps++ % sampleInterval == 0);
+		return read ? clock.set(wallTime, threadMXBean.getCurrentThreadCpuTime()) : clock.get(wallTime);
+	}
+
+	private boolean isAboveThreshold(int methodId) {
+		long[] calls = this.calls;
+		if (methodId >= calls.length || calls[methodId] < WARMUP_CALLS) return true;
+		return wallTimes[methodId] / calls[methodId] >= thresholdNanos;
+	}
+
+	/**
+	 * Threshold mode: records the wall time of a completed call for the decision of {@link #readCPU(int, long)}.
+	 */
+	public void recordWallTime(int methodId, long wallTimePassed) {
+		if (!threshold) return;
+		if (methodId >= calls.length) ensureCapacity(methodId);
+		long[] calls = this.calls, wallTimes = this.wallTimes;
+		calls[methodId]++;
+		wallTimes[methodId] += wallTimePassed;
+	}
+
+	private synchronized void ensureCapacity(int methodId) {
+		if (methodId >= calls.length) {
+			int newLength = Math.max(2 * calls.length, Math.max(methodId + 1, 256));
+			wallTimes = Arrays.copyOf(wallTimes, newLength);
+			calls = Arrays.copyOf(calls, newLength);
+		}
+	}
+
+	/**
+	 * Sets the time an empty tracked call reports, which is subtracted from every call from now on.
+	 */
+	public void setOverhead(long wallOverheadNanos, long cpuOverheadNanos) {
+		this.wallOverheadNanos = wallOverheadNanos;
+		this.cpuOverheadNanos = cpuOverheadNanos;
+	}
+
+	/**
+	 * @return the wall time of a call without the calibrated overhead
+	 */
+	public long correctWallTime(long wallTimePassed) {
+		return Math.max(0, wallTimePassed - wallOverheadNanos);
+	}
+
+	/**
+	 * @return the cpu time of a call without the calibrated overhead
+	 */
+	public long correctCPUTime(long cpuTimePassed) {
+		return Math.max(0, cpuTimePassed - cpuOverheadNanos);
+	}
+
+	/**
+	 * @return a line for the statistics header describing how the times were measured
+	 */
+	public String getDescription() {
+		String description = "clock = " + mode;
+		if (threshold) description += String.format(" (cpu time read for methods >= %dus)", thresholdNanos / 1000);
+		if (SAMPLED.equals(mode)) description += String.format(" (cpu time read for every %d. timestamp)", sampleInterval);
+		if (wallOverheadNanos > 0 || cpuOverheadNanos > 0) {
+			description += String.format(", calibrated overhead subtracted per call: wall = %dns, cpu = %dns", wallOverheadNanos, cpuOverheadNanos);
+		}
+		return description;
+	}
+
+	/**
+	 * Cpu clock of a thread that only reads the real cpu time when {@link #set(long, long)} is called.
+	 */
+	private static class VirtualCPUClock {
+
+		private int timestamps = 0;
+		private boolean started = false;
+		private long wallTime = 0, cpuTime = 0;			//last real reading
+		private long ratioWallTime = 0, ratioCPUTime = 0;	//reading at the last update of the ratio
+		private double ratio = 1;
+
+		private long set(long wallTime, long cpuTime) {
+			long ratioWallTimePassed = wallTime - ratioWallTime;
+			if (!started || ratioWallTimePassed >= RATIO_INTERVAL_NANOS) {
+				if (started) ratio = Math.min(1, (double) (cpuTime - ratioCPUTime) / ratioWallTimePassed);
+				ratioWallTime = wallTime;
+				ratioCPUTime = cpuTime;
+				started = true;
+			}
+			this.wallTime = wallTime;
+			this.cpuTime = cpuTime;
+			return cpuTime;
+		}
+
+		private long get(long wallTime) {
+			return cpuTime + (long) ((wallTime - this.wallTime) * ratio);
+		}
+
+	}
+
+}
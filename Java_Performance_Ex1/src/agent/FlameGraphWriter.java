@@ -0,0 +1,161 @@
+package agent;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports a call-path tree (see {@link CallTreeNode}) in the collapsed stack format
+ * (<code>frame1;frame2;frame3 selfTime</code>, as used by flamegraph.pl and speedscope)
+ * and as a self-contained HTML flame graph.<br>
+ * Frames are called methods, times are wall times in microseconds.
+ */
+public class FlameGraphWriter {
+
+	private static final long nanosToMicros = 1000;
+
+	/**
+	 * Frame of the exported graph: children with the same method name are merged (e.g. calls from different call sites).
+	 */
+	private static class Frame {
+		final String name;
+		long calls = 0, wallTime = 0, cpuTime = 0;
+		final Map<String, Frame> children = new LinkedHashMap<>();
+
+		Frame(String name) {
+			this.name = name;
+		}
+
+		long getSelfWallTime() {
+			long self = wallTime;
+			for (Frame child : children.values()) self -= child.wallTime;
+			return Math.max(self, 0);
+		}
+	}
+
+	private final Frame root = new Frame("all");
+
+	public FlameGraphWriter(CallTreeNode callTree) {
+		for (CallTreeNode child : callTree.getChildren()) {
+			add(root, child);
+		}
+		for (Frame child : root.children.values()) {
+			root.calls += child.calls;
+			root.wallTime += child.wallTime;
+			root.cpuTime += child.cpuTime;
+		}
+	}
+
+	private static void add(Frame parent, CallTreeNode node) {
+		String name = MethodRegistry.getCalledMethod(node.methodId);
+		Frame frame = parent.children.computeIfAbsent(name, Frame::new);
+		frame.calls += node.calls;
+		frame.wallTime += node.wallTime;
+		frame.cpuTime += node.cpuTime;
+		for (CallTreeNode child : node.getChildren()) {
+			add(frame, child);
+		}
+	}
+
+	/**
+	 * Writes &lt;filePrefix&gt;.collapsed and &lt;filePrefix&gt;.html
+	 */
+	public void write(String filePrefix) {
+		try (PrintStream collapsed = new PrintStream(filePrefix + ".collapsed");
+				PrintStream html = new PrintStream(filePrefix + ".html")) {
+			writeCollapsed(collapsed);
+			writeHtml(html);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void writeCollapsed(PrintStream out) {
+		List<String> stack = new ArrayList<>();
+		for (Frame child : root.children.values()) {
+			writeCollapsed(out, child, stack);
+		}
+	}
+
+	private static void writeCollapsed(PrintStream out, Frame frame, List<String> stack) {
+		stack.add(frame.name);
+		long self = frame.getSelfWallTime() / nanosToMicros;
+		if (self > 0) {
+			out.print(String.join(";", stack));
+			out.print(' ');
+			out.println(self);
+		}
+		for (Frame child : frame.children.values()) {
+			writeCollapsed(out, child, stack);
+		}
+		stack.remove(stack.size() - 1);
+	}
+
+	public void writeHtml(PrintStream out) {
+		StringBuilder json = new StringBuilder();
+		appendJson(json, root);
+		out.println("<!DOCTYPE html>");
+		out.println("<html><head><meta charset=\"utf-8\"><title>Flame Graph</title><style>");
+		out.println("body { font: 12px sans-serif; margin: 8px; }");
+		out.println("#graph { position: relative; width: 100%; }");
+		out.println(".frame { position: absolute; height: 17px; overflow: hidden; white-space: nowrap; box-sizing: border-box;");
+		out.println("  border: 1px solid white; padding-left: 2px; cursor: pointer; line-height: 15px; }");
+		out.println("#info { height: 18px; }");
+		out.println("</style></head><body>");
+		out.println("<div id=\"info\">Click a frame to zoom in, click the bottom frame to zoom out.</div>");
+		out.println("<div id=\"graph\"></div>");
+		out.println("<script>");
+		out.print("var data = ");
+		out.print(json);
+		out.println(";");
+		out.println("var graph = document.getElementById('graph'), info = document.getElementById('info');");
+		out.println("function depth(f) { var d = 0; (f.c || []).forEach(function(c) { d = Math.max(d, depth(c)); }); return d + 1; }");
+		out.println("function color(name) { var h = 0; for (var i = 0; i < name.length; i++) h = (h * 31 + name.charCodeAt(i)) | 0;");
+		out.println("  return 'hsl(' + (20 + Math.abs(h) % 40) + ', 80%, ' + (55 + Math.abs(h >> 8) % 20) + '%)'; }");
+		out.println("function self(f) { var s = f.w; (f.c || []).forEach(function(c) { s -= c.w; }); return Math.max(s, 0); }");
+		out.println("function render(zoom, path) {");
+		out.println("  graph.innerHTML = ''; var rows = depth(zoom) + path.length; graph.style.height = (rows * 18) + 'px';");
+		out.println("  path.forEach(function(f, i) { draw(f, i, 0, 100, zoom, path); });");
+		out.println("  layout(zoom, path.length, 0, 100, zoom, path); }");
+		out.println("function layout(f, d, x, w, zoom, path) {");
+		out.println("  draw(f, d, x, w, zoom, path); var cx = x;");
+		out.println("  (f.c || []).forEach(function(c) { var cw = f.w > 0 ? w * c.w / f.w : 0; if (cw > 0.05) layout(c, d + 1, cx, cw, zoom, path); cx += cw; }); }");
+		out.println("function draw(f, d, x, w, zoom, path) {");
+		out.println("  var e = document.createElement('div'); e.className = 'frame'; e.textContent = f.n;");
+		out.println("  e.style.left = x + '%'; e.style.width = w + '%'; e.style.bottom = (d * 18) + 'px'; e.style.background = color(f.n);");
+		out.println("  var text = f.n + ' | calls: ' + f.k + ' | wall: ' + (f.w / 1000).toFixed(2) + 'ms (' + (100 * f.w / data.w).toFixed(2) + '%)'");
+		out.println("    + ' | self: ' + (self(f) / 1000).toFixed(2) + 'ms | cpu: ' + (f.u / 1000).toFixed(2) + 'ms';");
+		out.println("  e.title = text; e.onmouseover = function() { info.textContent = text; };");
+		out.println("  e.onclick = function() { var i = path.indexOf(f); if (i >= 0) render(f, path.slice(0, i)); else if (f !== zoom) render(f, pathTo(f)); };");
+		out.println("  graph.appendChild(e); }");
+		out.println("function pathTo(target) { var result = null;");
+		out.println("  (function walk(f, p) { if (f === target) { result = p; return; } (f.c || []).forEach(function(c) { if (!result) walk(c, p.concat([f])); }); })(data, []);");
+		out.println("  return result; }");
+		out.println("render(data, []);");
+		out.println("</script></body></html>");
+	}
+
+	private static void appendJson(StringBuilder json, Frame frame) {
+		json.append("{\"n\":\"").append(escape(frame.name)).append("\",\"k\":").append(frame.calls)
+				.append(",\"w\":").append(frame.wallTime / nanosToMicros).append(",\"u\":").append(frame.cpuTime / nanosToMicros);
+		if (!frame.children.isEmpty()) {
+			json.append(",\"c\":[");
+			boolean first = true;
+			for (Frame child : frame.children.values()) {
+				if (!first) json.append(',');
+				appendJson(json, child);
+				first = false;
+			}
+			json.append(']');
+		}
+		json.append('}');
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("<", "\\u003c");
+	}
+
+}
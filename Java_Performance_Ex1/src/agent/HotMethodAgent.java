@@ -1,38 +1,112 @@
 package agent;
 
 import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Only works for applications that use a single thread.
+ * Works for multi-threaded applications: every thread keeps its own shadow call stack and statistics,
+ * which are merged when the JVM shuts down.<br>
+ * For the format of the agent arguments see {@link AgentOptions}.<br>
+ * <br>
+ * The agent can either be started with the JVM (-javaagent) or attached to a running JVM with the {@link AgentAttacher}.
+ * Attaching retransforms the already loaded classes, detaching (agent argument {@value #DETACH}) restores their
+ * original bytecode and prints the statistics gathered so far.
+ * The agent argument {@value #FLAME_GRAPH} writes the flame graph of an attached agent without detaching it.
  */
 public class HotMethodAgent {
 	
 	protected static final boolean DEBUG = false;
 	
+	public static final String DETACH = "detach";
+	public static final String FLAME_GRAPH = "flamegraph";
+	
+	private static Instrumentation instrumentation;
+	private static AgentOptions configuredOptions = null;	//options the HotMethodLogger was configured with
+	private static MixedTransformer transformer = null;	//null if detached
+	
 	public static void premain(String args, Instrumentation instrumentation) {
-		//filter out classes to transform from args-String
-		String[] packageStrings = args.split(";");
-		List<String> includedClasses = new ArrayList<>();
-		for (String p : packageStrings) {
-			int colonIndex = p.indexOf(':');
-			String packageName = p.substring(0, colonIndex);
-			String classesString = p.substring(colonIndex + 1);
-			for (String className : classesString.split(",")) {
-				includedClasses.add(packageName + "." + className);
-			}
+		//classes are transformed when they are loaded, so no retransformation is necessary
+		attach(args, instrumentation, false);
+	}
+	
+	/**
+	 * Called when the agent is attached to a running JVM.<br>
+	 * args are either the usual agent arguments or {@value #DETACH}.
+	 */
+	public static void agentmain(String args, Instrumentation instrumentation) {
+		if (DETACH.equals(args)) {
+			detach();
+		}
+		else if (FLAME_GRAPH.equals(args)) {
+			HotMethodLogger.writeFlameGraph();
+		}
+		else {
+			attach(args, instrumentation, true);
+		}
+	}
+	
+	private static synchronized void attach(String args, Instrumentation instrumentation, boolean retransform) {
+		if (transformer != null) {
+			System.err.println("HotMethodAgent is already attached, detach it first.");
+			return;
 		}
-		//add a transformer with the specified classes (automatically transforms classes that are being loaded)
-		instrumentation.addTransformer(new MixedTransformer(includedClasses));
 		
-		//load all classes that should be transformed
-		ClassLoader loader = ClassLoader.getSystemClassLoader();
-		for (String className : includedClasses) {
-			try {
-				if (DEBUG) System.out.printf("------------------------------------> LOADING CLASS \"%s\" <------------------------------------%n", className);
-				Class.forName(className, true, loader);		//load and therefore transform class
-			} catch (ClassNotFoundException e) { e.printStackTrace(); }
+		//filter out classes to transform and options from args-String
+		AgentOptions options = new AgentOptions(args);
+		if (configuredOptions == null) {
+			HotMethodLogger.configure(options);
+			configuredOptions = options;
+		}
+		else if (!configuredOptions.options.equals(options.options)) {
+			//the logger (mode, log files, sampling) can only be configured once per JVM
+			System.err.println("HotMethodAgent was attached before with other options, re-attach with: " + configuredOptions.options);
+			return;
+		}
+		else {
+			HotMethodLogger.printStatisticsAtShutdown();
+		}
+		HotMethodAgent.instrumentation = instrumentation;
+		
+		//add a transformer with the specified classes (automatically transforms classes that are being loaded)
+		transformer = new MixedTransformer(options);
+		instrumentation.addTransformer(transformer, true);
+		if (retransform) retransformClasses(transformer);
+	}
+	
+	/**
+	 * Removes the transformer and restores the original bytecode of all transformed classes.<br>
+	 * Calls that are running while the agent is detached still finish in the instrumented version of their method.
+	 */
+	private static synchronized void detach() {
+		if (transformer == null) {
+			System.err.println("HotMethodAgent is not attached.");
+			return;
+		}
+		MixedTransformer oldTransformer = transformer;
+		transformer = null;
+		instrumentation.removeTransformer(oldTransformer);
+		retransformClasses(oldTransformer);		//without the transformer the JVM uses the original class files
+		HotMethodLogger.printStatisticsNow();
+	}
+	
+	/**
+	 * Retransforms all loaded classes that are included by the transformer.
+	 */
+	private static void retransformClasses(MixedTransformer transformer) {
+		List<Class<?>> classes = new ArrayList<>();
+		for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+			if (transformer.isIncluded(clazz.getName().replace('.', '/')) && instrumentation.isModifiableClass(clazz)) {
+				classes.add(clazz);
+			}
+		}
+		if (DEBUG) System.out.printf("------------------------------------> RETRANSFORMING %s <------------------------------------%n", classes);
+		if (classes.isEmpty()) return;
+		try {
+			instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+		} catch (UnmodifiableClassException e) {
+			e.printStackTrace();
 		}
 	}
 }
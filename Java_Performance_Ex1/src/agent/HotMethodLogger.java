@@ -1,36 +1,221 @@
 package agent;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
 
 public class HotMethodLogger {
 	
-	protected static PrintStream runtimeLoggingStream, statisticsLoggingStream;
+	protected static PrintStream statisticsLoggingStream;
+	protected static AsyncLogWriter runtimeLog;
 	static {
-		runtimeLoggingStream = System.err;		//Default console stream
-		statisticsLoggingStream = System.err;
+		statisticsLoggingStream = System.err;	//Default console stream
 		try {
-			runtimeLoggingStream = new PrintStream(new File("log.txt"));
 			statisticsLoggingStream = new PrintStream(new File("statistics" + new SimpleDateFormat("_dd.MM.yyyy_HH-mm-ss-SSS").format(new Date()) +".txt"));
 		} catch (FileNotFoundException | NullPointerException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	private static final String methodTimerKeyFormat = "%s_%s_%d";
-	private static final StackMap<String, MethodCall> methodTimer = new StackMap<>();
+	private static final ThreadLocal<ArrayDeque<MethodCall>> shadowStacks = ThreadLocal.withInitial(ArrayDeque::new);
 	private static final HotMethodStatistics methodStatistics = new HotMethodStatistics();
+	private static ClockSource clock = new ClockSource(new AgentOptions(null));
+	
+	protected static boolean fastMode = false;
+	private static BinaryTraceWriter traceWriter = null;
+	private static final ThreadLocal<CallEventBuffer> eventBuffers = ThreadLocal.withInitial(() -> {
+		CallEventBuffer buffer = new CallEventBuffer(Thread.currentThread().getId(), methodStatistics, clock, traceWriter);
+		methodStatistics.registerEventBuffer(buffer);
+		return buffer;
+	});
+	
+	//sampling: the invocations are counted per thread (see ThreadStatistics)
+	private static boolean sampling = false;
+	private static long sampleRate = 0;
+	private static long sampleIntervalNanos = 0;
+	
+	private static final int CALIBRATION_ROUNDS = 2000, CALIBRATION_PASSES = 20;
+	
+	/**
+	 * Called by the {@link HotMethodAgent} before any class is transformed.
+	 */
+	public static void configure(AgentOptions options) {
+		fastMode = options.isFastMode();
+		sampleRate = options.getSampleRate();
+		sampling = sampleRate > 0 || options.getSampleIntervalMicros() > 0;
+		sampleIntervalNanos = options.getSampleIntervalMicros() * 1000;
+		clock = new ClockSource(options);
+		if (options.isCalibrating()) calibrate();
+		methodStatistics.setClock(clock);
+		methodStatistics.setFlameGraphFile(options.getFlameGraphFile());
+		if (options.isRegisteringMBean() || options.getMetricsPort() > 0) {
+			LiveMetrics liveMetrics = new LiveMetrics(methodStatistics);
+			if (options.isRegisteringMBean()) liveMetrics.registerMBean();
+			if (options.getMetricsPort() > 0) liveMetrics.startHttpServer(options.getMetricsPort());
+		}
+		if (!fastMode) {	//only the trace mode writes a runtime log
+			WritableByteChannel channel;
+			try {
+				channel = new FileOutputStream(new File("log.txt")).getChannel();
+			} catch (IOException e) {
+				e.printStackTrace();
+				channel = Channels.newChannel(System.err);
+			}
+			runtimeLog = new AsyncLogWriter(channel, options.getLogBufferSize(), options.isBlockingWhenLogBufferFull());
+			runtimeLog.start();
+		}
+		else if (options.getTraceFile() != null) {
+			try {
+				traceWriter = new BinaryTraceWriter(options.getTraceFile());
+				methodStatistics.setTraceWriter(traceWriter);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Prints the statistics gathered so far, called by the {@link HotMethodAgent} when it is detached.
+	 */
+	public static void printStatisticsNow() {
+		methodStatistics.printStatisticsNow();
+	}
+	
+	/**
+	 * Writes the call trees gathered so far as flame graph, called by the {@link HotMethodAgent} on demand.
+	 */
+	public static void writeFlameGraph() {
+		methodStatistics.writeFlameGraph();
+	}
+	
+	/**
+	 * Called by the {@link HotMethodAgent} when it is attached again after being detached.
+	 */
+	public static void printStatisticsAtShutdown() {
+		methodStatistics.printStatisticsAtShutdown();
+	}
+	
+	//                --- Calibration ---
+	
+	/**
+	 * Measures the time an empty tracked call reports in the active mode, i.e. everything the logger does between
+	 * the entry and the exit timestamp (clock reads, thread local lookups, the event buffer or the shadow stack),
+	 * by tracking empty calls of a reserved method id in a separate thread, and subtracts it from every call.<br>
+	 * Runs before any class is transformed, so every call of the program is corrected the same way,
+	 * and before the flame graph, the live metrics and the trace are set up, so the calibration calls only end up
+	 * in the discarded statistics of the calibration thread.<br>
+	 * The median of a pass is used, so a context switch during calibration does not distort it,
+	 * and the lowest median of all passes, since the first passes run before the JIT compiled the logger.
+	 */
+	private static void calibrate() {
+		int methodId = MethodRegistry.getMethodId(HotMethodLogger.class.getName() + ".calibrate",
+				HotMethodLogger.class.getName() + ".calibrationCall");
+		//the runtime log is written outside of the timestamps, a writer that is never started drops the calibration calls
+		if (!fastMode) runtimeLog = new AsyncLogWriter(Channels.newChannel(new ByteArrayOutputStream()), 1, false);
+		
+		Thread calibrationThread = new Thread(() -> {
+			Object[] noArguments = new Object[0];
+			long wallOverhead = Long.MAX_VALUE, cpuOverhead = Long.MAX_VALUE;
+			for (int pass = 0; pass < CALIBRATION_PASSES; pass++) {
+				for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+					if (fastMode) {
+						startTrackingMethod(methodId);
+						stopTrackingMethod(methodId);
+					}
+					else {
+						startTrackingMethod(noArguments, methodId);
+						stopTrackingMethod(null, methodId);
+					}
+				}
+				if (fastMode) eventBuffers.get().flush();
+				MethodAggregate calls = methodStatistics.getThreadStatistics().removeAggregate(methodId);
+				wallOverhead = Math.min(wallOverhead, calls.wallTimeHistogram.getValueAtPercentile(50));
+				cpuOverhead = Math.min(cpuOverhead, calls.cpuTimeHistogram.getValueAtPercentile(50));
+			}
+			clock.setOverhead(wallOverhead, cpuOverhead);
+		}, "HotMethodAgent-Calibration");
+		calibrationThread.start();
+		try {
+			calibrationThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	//                --- Sampling ---
+	
+	/**
+	 * Called by the instrumented bytecode before every call of a sampled call site.<br>
+	 * Counts the invocation in the statistics of the current thread, so no counter is shared between threads.
+	 * @return true if the call should not be tracked
+	 */
+	public static boolean skipSample(int methodId) {
+		return !methodStatistics.getThreadStatistics().isSampled(methodId, sampleRate, sampleIntervalNanos);
+	}
+	
+	/**
+	 * @return the number of invocations per method id including the ones that were not sampled, or null if sampling is off
+	 */
+	protected static long[] getInvocationCounts() {
+		return sampling ? methodStatistics.getInvocationCounts() : null;
+	}
 	
 	//                --- Runtime Logging ---
 	
-	public static void startTrackingMethod(Object[] argsInReverseOrder, String callSite, String calledMethod) {
-		int i = 0;
-		String args[] = new String[argsInReverseOrder.length];		
-		for (Object o : argsInReverseOrder) {
+	/**
+	 * @param methodId - id of the (callSite, calledMethod) pair assigned by the {@link MethodRegistry} at transform time
+	 */
+	public static void startTrackingMethod(Object[] args, int methodId) {
+		if (fastMode) {		//arguments are kept unformatted
+			long wallTime = System.nanoTime();
+			eventBuffers.get().addEntry(methodId, args, wallTime, clock.readCPU(methodId, wallTime));
+			return;
+		}
+		
+		String callSite = MethodRegistry.getCallSite(methodId);
+		String calledMethod = MethodRegistry.getCalledMethod(methodId);
+		String argString = formatArguments(args);
+		
+		runtimeLog.logEntry(methodId, argString);
+		if (methodStatistics.isBuildingCallTrees()) methodStatistics.enterMethod(methodId);
+		
+		long curThreadID = Thread.currentThread().getId();
+		long wallTime = System.nanoTime();
+		shadowStacks.get().push(
+				new MethodCall(methodId, callSite, calledMethod, argString, curThreadID, 
+						wallTime, clock.readCPU(methodId, wallTime))
+		);
+	}
+	
+	/**
+	 * Fast mode without argument capturing: only records the method id and timestamps.
+	 */
+	public static void startTrackingMethod(int methodId) {
+		long wallTime = System.nanoTime();
+		eventBuffers.get().addEntry(methodId, null, wallTime, clock.readCPU(methodId, wallTime));
+	}
+	
+	/**
+	 * Fast mode: only records the method id and timestamps.
+	 */
+	public static void stopTrackingMethod(int methodId) {
+		long wallTime = System.nanoTime();
+		long cpuTime = clock.readCPU(methodId, wallTime);
+		eventBuffers.get().addExit(methodId, wallTime, cpuTime);
+	}
+	
+	protected static String formatArguments(Object[] args) {
+		String argString = "";
+		for (int i = 0; i < args.length; i++) {
+			Object o = args[i];
 			String format = "%s";
 			if (o instanceof String) {
 				format = "\"%s\"";
@@ -38,44 +223,69 @@ public class HotMethodLogger {
 			else if (o instanceof Character) {
 				format = "'%s'";
 			}
-			args[i++] = String.format(format, o.toString());
+			argString += String.format(format, o);
+			if (i < args.length - 1) argString += ", ";
 		}
+		return argString;
+	}
+	
+	public static void stopTrackingMethod(Object retVal, int methodId) {
+		ArrayDeque<MethodCall> shadowStack = shadowStacks.get();
+		MethodCall call = shadowStack.pop();
 		
-		String argString = "";
-		for (i -= 1; i >= 0; i--) {
-			argString += args[i];
-			if (i > 0) argString += ", ";
-		}
+		long wallTime = System.nanoTime();
+		long wallTimePassed = wallTime - call.wallClockTimeNanos;
+		long cpuTimePassed = clock.readCPU(methodId, wallTime) - call.cpuTimeNanos;
 		
-		runtimeLoggingStream.printf("%-50s ----> %50s%n", callSite, String.format("%s(%s)", getSimpleMethodName(calledMethod), argString));
+		//formatting and writing is done by the writer thread
+		runtimeLog.logExit(methodId, call.args, retVal == null ? null : retVal.toString(), null, wallTimePassed, cpuTimePassed);
 		
-		long curThreadID = Thread.currentThread().getId();
-		methodTimer.add(String.format(methodTimerKeyFormat, callSite, calledMethod, curThreadID),
-				new MethodCall(callSite, calledMethod, argString, curThreadID, 
-						System.nanoTime(), ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime())
-		);
+		recordMethodCall(shadowStack, call, wallTimePassed, cpuTimePassed);
+	}
+	
+	/**
+	 * Records the inclusive and the self time of a call that was popped from the shadowStack
+	 * and adds its time to the child time of the calling call.<br>
+	 * The calibrated overhead of the clock is subtracted from both, the caller's child time contains the uncorrected time,
+	 * so the overhead of the call is not counted as self time of the caller either.
+	 */
+	private static void recordMethodCall(ArrayDeque<MethodCall> shadowStack, MethodCall call, long wallTimePassed, long cpuTimePassed) {
+		MethodCall caller = shadowStack.peek();
+		if (caller != null) {
+			caller.childWallTimeNanos += wallTimePassed;
+			caller.childCPUTimeNanos += cpuTimePassed;
+		}
+		clock.recordWallTime(call.methodId, wallTimePassed);
+		methodStatistics.recordMethodCall(call.methodId, clock.correctWallTime(wallTimePassed), clock.correctCPUTime(cpuTimePassed),
+				clock.correctWallTime(wallTimePassed - call.childWallTimeNanos), clock.correctCPUTime(cpuTimePassed - call.childCPUTimeNanos));
 	}
 	
-	public static void stopTrackingMethod(Object retVal, String callSite, String calledMethod) {
-		MethodCall call = methodTimer.remove(String.format(methodTimerKeyFormat, callSite, calledMethod, Thread.currentThread().getId()));
+	/**
+	 * Called by the exception handler around a tracked call, the handler rethrows the exception afterwards.
+	 */
+	public static void stopTrackingMethodExceptionally(Throwable exception, int methodId) {
+		if (fastMode) {
+			long wallTime = System.nanoTime();
+			long cpuTime = clock.readCPU(methodId, wallTime);
+			eventBuffers.get().addExit(methodId, exception.getClass(), wallTime, cpuTime);
+			return;
+		}
 		
-		String args = call.args;
+		ArrayDeque<MethodCall> shadowStack = shadowStacks.get();
+		MethodCall call = shadowStack.pop();
 		
-		long wallTimePassed = System.nanoTime() - call.wallClockTimeNanos;
-		long cpuTimePassed = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - call.cpuTimeNanos;
+		long wallTime = System.nanoTime();
+		long wallTimePassed = wallTime - call.wallClockTimeNanos;
+		long cpuTimePassed = clock.readCPU(methodId, wallTime) - call.cpuTimeNanos;
 		
-		runtimeLoggingStream.printf("%-50s <---- %50s [wall = %.2fms, cpu = %.2fms%s]%n",
-				callSite, String.format("%s(%s)", getSimpleMethodName(calledMethod), args), 
-				(double) wallTimePassed / HotMethodStatistics.nanosToMillis, (double) cpuTimePassed / HotMethodStatistics.nanosToMillis,
-				retVal == null ? "" : ", ret=" + retVal.toString()
-		);
+		String exceptionClassName = exception.getClass().getName();
+		runtimeLog.logExit(methodId, call.args, null, exceptionClassName, wallTimePassed, cpuTimePassed);
 		
-		call.wallTimePassedNanos = wallTimePassed;
-		call.cpuTimePassedNanos = cpuTimePassed;
-		methodStatistics.recordMethodCall(call);
+		recordMethodCall(shadowStack, call, wallTimePassed, cpuTimePassed);
+		methodStatistics.recordException(methodId, exceptionClassName);
 	}
 	
-	private static String getSimpleMethodName(String methodNameWithPackages) {
+	protected static String getSimpleMethodName(String methodNameWithPackages) {
 		return methodNameWithPackages.substring(methodNameWithPackages.lastIndexOf('.') + 1);
 	}
 	
@@ -1,119 +1,352 @@
 package agent;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Gathers statistics of all instrumented threads and prints them when the JVM shuts down.<br>
+ * Methods are ranked by their self time, i.e. their time without the time of the tracked calls they made.
+ * The self times of all methods add up to the total time, inclusive times overlap.<br>
+ * Every thread records into its own {@link ThreadStatistics}, so recording needs no synchronization.
+ */
 public class HotMethodStatistics {
 
 	public static final long nanosToMillis = 1000000;
 	public static final long nanosToSeconds = 1000000000;
+	private static final long FLUSH_TIMEOUT_MILLIS = 100;
 	
 	private final PrintStream outStream;
-	private StatisticsThread statisticsThread = null;
 	
-	private long totalWallTimePassed = 0, totalCPUTimePassed = 0;
-	private QueueMap<String, MethodCall> methodCalls;
+	private final Queue<ThreadStatistics> threadStatistics = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<ThreadStatistics> localStatistics = ThreadLocal.withInitial(() -> {
+		ThreadStatistics statistics = new ThreadStatistics(Thread.currentThread().getId());
+		threadStatistics.add(statistics);
+		return statistics;
+	});
+	private final Queue<CallEventBuffer> eventBuffers = new ConcurrentLinkedQueue<>();
+	private BinaryTraceWriter traceWriter = null;
+	private volatile String flameGraphFile = null;	//file prefix, call trees are only built if set
+	private ClockSource clock = null;
+	private StatisticsThread statisticsThread = new StatisticsThread();
 	
 	public HotMethodStatistics() {
 		outStream = HotMethodLogger.statisticsLoggingStream;
-		methodCalls = new QueueMap<>();
+		Runtime.getRuntime().addShutdownHook(statisticsThread);
 	}
 	
 	/**
-	 * Records a method call for the statisticsThread.
+	 * Prints the statistics gathered so far immediately instead of at shutdown (used when the agent is detached).<br>
+	 * If the agent is attached again, the statistics are printed once more at shutdown, including the calls recorded before.
 	 */
-	public void recordMethodCall(MethodCall mc) {
-		if (statisticsThread == null) {
-			statisticsThread = new StatisticsThread(Thread.currentThread());
-			statisticsThread.start();
+	public synchronized void printStatisticsNow() {
+		try {
+			if (!Runtime.getRuntime().removeShutdownHook(statisticsThread)) return;	//already printed
+		} catch (IllegalStateException e) {
+			return;		//JVM is shutting down, the shutdown hook prints the statistics
 		}
-		totalWallTimePassed += mc.wallTimePassedNanos;
-		totalCPUTimePassed += mc.cpuTimePassedNanos;
-		methodCalls.add(mc.callee, mc);
+		statisticsThread.run();
+		statisticsThread = new StatisticsThread();
 	}
 	
-	private class StatisticsThread extends Thread {
-		
-		private final Thread instrumentedThread;
-		
-		public StatisticsThread(Thread instrumentedThread) {
-			this.instrumentedThread = instrumentedThread;
+	/**
+	 * Prints the statistics again at shutdown after {@link #printStatisticsNow()} was called (used when the agent is re-attached).
+	 */
+	public synchronized void printStatisticsAtShutdown() {
+		try {
+			Runtime.getRuntime().addShutdownHook(statisticsThread);
+		} catch (IllegalArgumentException e) {
+			//already registered
+		}
+	}
+	
+	/**
+	 * Registers a buffer of the fast mode, which is flushed by the statisticsThread before evaluating.
+	 */
+	public void registerEventBuffer(CallEventBuffer buffer) {
+		eventBuffers.add(buffer);
+	}
+	
+	/**
+	 * The trace writer is closed by the statisticsThread after all event buffers were flushed.
+	 */
+	public void setTraceWriter(BinaryTraceWriter traceWriter) {
+		this.traceWriter = traceWriter;
+	}
+	
+	/**
+	 * Enables the call trees, which are written as flame graph (see {@link FlameGraphWriter}) together with the statistics.
+	 */
+	public void setFlameGraphFile(String filePrefix) {
+		this.flameGraphFile = filePrefix;
+	}
+	
+	/**
+	 * @param clock - its description is printed above the statistics
+	 */
+	public void setClock(ClockSource clock) {
+		this.clock = clock;
+	}
+	
+	public boolean isBuildingCallTrees() {
+		return flameGraphFile != null;
+	}
+	
+	/**
+	 * @return the statistics of the current thread
+	 */
+	public ThreadStatistics getThreadStatistics() {
+		return localStatistics.get();
+	}
+	
+	/**
+	 * Records the entry of a call in the call tree of the current thread (only needed if call trees are built).
+	 */
+	public void enterMethod(int methodId) {
+		localStatistics.get().enterMethod(methodId);
+	}
+	
+	/**
+	 * Records a method call in the statistics of the current thread.
+	 * @param selfWallTime, selfCPUTime - time of the call without the time of the tracked calls it made
+	 */
+	public void recordMethodCall(int methodId, long wallTimePassed, long cpuTimePassed, long selfWallTime, long selfCPUTime) {
+		ThreadStatistics statistics = localStatistics.get();
+		statistics.recordMethodCall(methodId, wallTimePassed, cpuTimePassed, selfWallTime, selfCPUTime);
+		if (flameGraphFile != null) statistics.exitMethod(wallTimePassed, cpuTimePassed);
+	}
+	
+	/**
+	 * Merges the call trees of all threads and writes them as flame graph.<br>
+	 * Can also be called while the instrumented program runs, calls buffered by the fast mode are then not included yet.
+	 */
+	public void writeFlameGraph() {
+		if (flameGraphFile == null) return;
+		CallTreeNode callTree = new CallTreeNode(-1, null);
+		for (ThreadStatistics statistics : threadStatistics) {
+			callTree.merge(statistics.callTree);
+		}
+		new FlameGraphWriter(callTree).write(flameGraphFile);
+	}
+	
+	/**
+	 * Records in the statistics of the current thread that a call threw an exception.
+	 */
+	public void recordException(int methodId, String exceptionClassName) {
+		localStatistics.get().recordException(methodId, exceptionClassName);
+	}
+	
+	/**
+	 * Merges the statistics of all threads per method id while the instrumented program runs (see {@link LiveMetrics}).<br>
+	 * The fast mode buffers are flushed first (see {@link #flushEventBuffers()}), buffers of threads that make no calls
+	 * within {@value #FLUSH_TIMEOUT_MILLIS}ms are included in a later merge.
+	 * @return the aggregates indexed by method id, not scaled by sampling
+	 */
+	public MethodAggregate[] getLiveAggregates() {
+		flushEventBuffers();
+		return mergePerMethodId(threadStatistics, true);
+	}
+	
+	/**
+	 * Flushes the fast mode buffers without racing their owners: other live threads are asked to flush at their next event
+	 * and are waited for at most {@value #FLUSH_TIMEOUT_MILLIS}ms, the buffers of the current thread and of stopped threads
+	 * are flushed directly (see {@link CallEventBuffer#flushIfOwnerStopped()}).
+	 * @return the number of buffers that were not flushed, because their threads made no call in time
+	 */
+	private int flushEventBuffers() {
+		for (CallEventBuffer buffer : eventBuffers) {
+			buffer.requestFlush();
+		}
+		long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+		int unflushed = 0;
+		for (CallEventBuffer buffer : eventBuffers) {
+			while (buffer.isFlushRequested() && buffer.isOwnerRecording() && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (buffer.isFlushRequested() && !buffer.flushIfOwnerStopped()) unflushed++;
+		}
+		return unflushed;
+	}
+	
+	/**
+	 * Sums the invocation counts of all threads (see {@link ThreadStatistics#isSampled(int, long, long)}).
+	 * @return the number of invocations per method id including the ones that were not sampled
+	 */
+	public long[] getInvocationCounts() {
+		long[] invocationCounts = new long[MethodRegistry.size()];
+		for (ThreadStatistics statistics : threadStatistics) {
+			long[] counts = statistics.invocationCounts;
+			for (int methodId = 0; methodId < counts.length && methodId < invocationCounts.length; methodId++) {
+				invocationCounts[methodId] += counts[methodId];
+			}
 		}
+		return invocationCounts;
+	}
+	
+	/**
+	 * @param live - if the threads may still record, only their times and number of exceptions are merged
+	 */
+	private static MethodAggregate[] mergePerMethodId(Iterable<ThreadStatistics> threadStatistics, boolean live) {
+		MethodAggregate[] methodIdAggregates = new MethodAggregate[MethodRegistry.size()];
+		for (ThreadStatistics statistics : threadStatistics) {
+			MethodAggregate[] aggregates = statistics.aggregates;
+			for (int methodId = 0; methodId < aggregates.length && methodId < methodIdAggregates.length; methodId++) {
+				MethodAggregate aggregate = aggregates[methodId];
+				if (aggregate == null) continue;
+				if (methodIdAggregates[methodId] == null) methodIdAggregates[methodId] = new MethodAggregate();
+				if (live) methodIdAggregates[methodId].mergeTimes(aggregate);
+				else methodIdAggregates[methodId].merge(aggregate);
+			}
+		}
+		return methodIdAggregates;
+	}
+	
+	/**
+	 * Runs as shutdown hook, i.e. after all non-daemon threads of the instrumented program finished
+	 * (or when System.exit was called, so other threads may still be recording).
+	 */
+	private class StatisticsThread extends Thread {
 		
 		@Override
 		public void run() {
 			super.run();
-			try {
-				instrumentedThread.join();	//wait for instrumented program to finish
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			int unflushed = flushEventBuffers();
+			
+			if (traceWriter != null) traceWriter.close();
+			
+			if (clock != null) outStream.printf("-------> Times measured with %s%n%n", clock.getDescription());
+			if (unflushed > 0) {
+				outStream.printf("-------> Calls buffered by %d still running thread(s) are not included%n%n", unflushed);
+			}
+			printStatistics(outStream, threadStatistics, HotMethodLogger.getInvocationCounts());
+			outStream.flush();
+			writeFlameGraph();
+		}
+		
+	}
+	
+	/**
+	 * Merges the statistics of all threads (grouped by called method) and prints them.
+	 * @param invocationCounts - if sampling was used: number of invocations per method id (including the not sampled ones)
+	 *                           to scale the statistics with, otherwise null
+	 */
+	protected static void printStatistics(PrintStream outStream, Iterable<ThreadStatistics> threadStatistics, long[] invocationCounts) {
+		MethodAggregate[] methodIdAggregates = mergePerMethodId(threadStatistics, false);
+		
+		//scale sampled method ids and merge per called method
+		long totalWallTimePassed = 0, totalCPUTimePassed = 0;
+		Map<String, MethodAggregate> methodAggregates = new HashMap<>();
+		Map<String, Map<String, Long>> methodCallers = new HashMap<>();
+		for (int methodId = 0; methodId < methodIdAggregates.length; methodId++) {
+			MethodAggregate aggregate = methodIdAggregates[methodId];
+			if (aggregate == null) continue;
+			if (invocationCounts != null && methodId < invocationCounts.length && invocationCounts[methodId] > aggregate.getCalls()) {
+				aggregate.scale((double) invocationCounts[methodId] / aggregate.getCalls());
 			}
-			double wallTime = totalWallTimePassed;
-			double cpuTime = totalCPUTimePassed;
+			//self times do not overlap, so their sum is the total time spent in tracked calls
+			totalWallTimePassed += aggregate.selfWallTime;
+			totalCPUTimePassed += aggregate.selfCPUTime;
 			
-			//then evaluate and print gathered statistics
-			outStream.printf("-------> Total times:%n"
-					+ "-------> Wallclock:  %8.2fs    (%.2fms),%n"
-					+ "-------> CPU time:   %8.2fs    (%.2fms)%n", 
-					wallTime / nanosToSeconds, wallTime / nanosToMillis,
-					cpuTime / nanosToSeconds, cpuTime / nanosToMillis);
+			String method = MethodRegistry.getCalledMethod(methodId);
+			methodAggregates.computeIfAbsent(method, k -> new MethodAggregate()).merge(aggregate);
+			methodCallers.computeIfAbsent(method, k -> new HashMap<>())
+					.merge(MethodRegistry.getCallSite(methodId), aggregate.getCalls(), Long::sum);
+		}
+		
+		double wallTime = totalWallTimePassed;
+		double cpuTime = totalCPUTimePassed;
+		//percentages of a total of 0 (e.g. cpu times with clock=wall) are printed as 0%
+		double wallTimePercentBase = Math.max(wallTime, 1), cpuTimePercentBase = Math.max(cpuTime, 1);
+		
+		//then evaluate and print gathered statistics
+		outStream.printf("-------> Total times:%n"
+				+ "-------> Wallclock:  %8.2fs    (%.2fms),%n"
+				+ "-------> CPU time:   %8.2fs    (%.2fms)%n", 
+				wallTime / nanosToSeconds, wallTime / nanosToMillis,
+				cpuTime / nanosToSeconds, cpuTime / nanosToMillis);
+		outStream.println();
+		
+		//hot spots first: ranked by self walltime
+		List<String> methods = new ArrayList<>(methodAggregates.keySet());
+		methods.sort(Comparator.comparingLong((String method) -> methodAggregates.get(method).selfWallTime).reversed());
+		
+		for (String method : methods) {
+			MethodAggregate aggregate = methodAggregates.get(method);
+			OnlineStatistic wall = aggregate.wallTime, cpu = aggregate.cpuTime;
+			long nrCalls = aggregate.getCalls();
+			double sumWallTime = wall.sum, sumCPUTime = cpu.sum;
+			double selfWallTime = aggregate.selfWallTime, selfCPUTime = aggregate.selfCPUTime;
+			
+			//print data
+			outStream.printf("-------------------------- Method: %s --------------------------%n", method);
+			outStream.printf("-> Total Calls: %d%s%n", nrCalls, invocationCounts == null ? "" : " (estimated from samples)"); 
+			outStream.printf("-> Self walltime (%% of total): %8.2fms (%.2f%%)%n", selfWallTime/nanosToMillis, 100*selfWallTime/wallTimePercentBase);
+			outStream.printf("-> Self cputime  (%% of total): %8.2fms (%.2f%%)%n", selfCPUTime/nanosToMillis, 100*selfCPUTime/cpuTimePercentBase);
+			outStream.printf("-> Sum walltime (%% of total):  %8.2fms (%.2f%%) (inclusive, including tracked callees)%n", sumWallTime/nanosToMillis, 100*sumWallTime/wallTimePercentBase);
+			outStream.printf("-> Sum cputime  (%% of total):  %8.2fms (%.2f%%) (inclusive, including tracked callees)%n", sumCPUTime/nanosToMillis, 100*sumCPUTime/cpuTimePercentBase);
+			outStream.println();
+			outStream.printf("-> Avg walltime (arithmetic):  %8.2fms%n", wall.getAverage()/nanosToMillis);
+			outStream.printf("-> Avg cputime  (arithmetic):  %8.2fms%n", cpu.getAverage()/nanosToMillis);
+			outStream.printf("-> Std. deviation walltime:    %8.2fms%n", wall.getStandardDeviation()/nanosToMillis);
+			outStream.printf("-> Std. deviation cputime:     %8.2fms%n", cpu.getStandardDeviation()/nanosToMillis);
 			outStream.println();
+			outStream.printf("-> Min / Max walltime:  %8.2fms     /  %8.2fms%n", (double) wall.min/nanosToMillis, (double) wall.max/nanosToMillis);
+			outStream.printf("-> Min / Max cputime:   %8.2fms     /  %8.2fms%n", (double) cpu.min/nanosToMillis, (double) cpu.max/nanosToMillis);
+			if (aggregate.slowestCallArguments != null) {
+				outStream.printf("-> Arguments of the slowest call: (%s)%n", formatArguments(aggregate.slowestCallArguments));
+			}
+			outStream.println();
+			printPercentiles(outStream, "walltime", aggregate.wallTimeHistogram);
+			printPercentiles(outStream, "cputime ", aggregate.cpuTimeHistogram);
 			
-			for (String method : methodCalls.keySet()) {
-				//calculate data
-				int nrCalls = methodCalls.getQueue(method).size();
-				Map<String, Integer> callers = new HashMap<>();
-				
-				double minWallTime = Integer.MAX_VALUE, maxWallTime = Integer.MIN_VALUE, sumWallTime = 0;
-				double minCPUTime = Integer.MAX_VALUE, maxCPUTime = Integer.MIN_VALUE, sumCPUTime = 0;
-				
-				for (MethodCall mc = methodCalls.remove(method); mc != null; mc = methodCalls.remove(method)) {
-					if (mc.wallTimePassedNanos < minWallTime)
-						minWallTime = mc.wallTimePassedNanos;
-					if (mc.wallTimePassedNanos > maxWallTime)
-						maxWallTime = mc.wallTimePassedNanos;
-					
-					if (mc.cpuTimePassedNanos < minCPUTime)
-						minCPUTime = mc.cpuTimePassedNanos;
-					if (mc.cpuTimePassedNanos > maxCPUTime)
-						maxCPUTime = mc.cpuTimePassedNanos;
-					
-					sumWallTime += mc.wallTimePassedNanos;
-					sumCPUTime += mc.cpuTimePassedNanos;
-					
-					Integer callsFromCaller = callers.get(mc.caller);
-					if (callsFromCaller == null)
-						callers.put(mc.caller, 1);
-					else
-						callers.put(mc.caller, callsFromCaller + 1);
-				}
-				
-				//print data
-				outStream.printf("-------------------------- Method: %s --------------------------%n", method);
-				outStream.printf("-> Total Calls: %d%n", nrCalls); 
-				outStream.printf("-> Sum walltime (%% of total):  %8.2fms (%.2f%%)%n", sumWallTime/nanosToMillis, 100*sumWallTime/wallTime);
-				outStream.printf("-> Sum cputime  (%% of total):  %8.2fms (%.2f%%)%n", sumCPUTime/nanosToMillis, 100*sumCPUTime/cpuTime);
-				outStream.println();
-				outStream.printf("-> Avg walltime (arithmetic):  %8.2fms%n", (sumWallTime/nrCalls)/nanosToMillis);
-				outStream.printf("-> Avg cputime  (arithmetic):  %8.2fms%n", (sumCPUTime/nrCalls)/nanosToMillis);
+			long exceptionalCalls = aggregate.getExceptionalCalls();
+			if (exceptionalCalls > 0) {
 				outStream.println();
-				outStream.printf("-> Min / Max walltime:  %8.2fms     /  %8.2fms%n", minWallTime/nanosToMillis, maxWallTime/nanosToMillis);
-				outStream.printf("-> Min / Max cputime:   %8.2fms     /  %8.2fms%n", minCPUTime/nanosToMillis, maxCPUTime/nanosToMillis);
-				
-				outStream.println();
-				outStream.printf("-> Callers:%n");
-				for (String caller : callers.keySet()) {
-					Integer callsFromCaller = callers.get(caller);
-					outStream.printf("---> %4d calls", callsFromCaller);
-					outStream.printf(" (%.2f%%)", (double) (100*callsFromCaller) / nrCalls);
-					outStream.printf(" from \"%s\"%n", caller);
+				outStream.printf("-> Exceptional exits: %d (%.2f%%)%n", exceptionalCalls, (double) (100*exceptionalCalls) / nrCalls);
+				for (Map.Entry<String, Long> exception : aggregate.exceptions.entrySet()) {
+					outStream.printf("---> %4d x %s%n", exception.getValue(), exception.getKey());
 				}
-				outStream.println();
-				outStream.println();
 			}
+			
+			outStream.println();
+			outStream.printf("-> Callers:%n");
+			Map<String, Long> callers = methodCallers.get(method);
+			for (String caller : callers.keySet()) {
+				long callsFromCaller = callers.get(caller);
+				outStream.printf("---> %4d calls", callsFromCaller);
+				outStream.printf(" (%.2f%%)", (double) (100*callsFromCaller) / nrCalls);
+				outStream.printf(" from \"%s\"%n", caller);
+			}
+			outStream.println();
+			outStream.println();
 		}
-		
+	}
+	
+	/**
+	 * The arguments are only formatted now, so they show the state of the objects at the time of the report.
+	 */
+	private static String formatArguments(Object[] args) {
+		try {
+			return HotMethodLogger.formatArguments(args);
+		} catch (RuntimeException e) {	//toString() of the program's objects
+			return "not printable: " + e;
+		}
+	}
+	
+	private static void printPercentiles(PrintStream outStream, String name, LatencyHistogram histogram) {
+		outStream.printf("-> p50 / p90 / p99 / p99.9 %s:  %8.3fms / %8.3fms / %8.3fms / %8.3fms%n", name,
+				(double) histogram.getValueAtPercentile(50) / nanosToMillis, (double) histogram.getValueAtPercentile(90) / nanosToMillis,
+				(double) histogram.getValueAtPercentile(99) / nanosToMillis, (double) histogram.getValueAtPercentile(99.9) / nanosToMillis);
 	}
 	
 }
@@ -0,0 +1,92 @@
+package agent;
+
+/**
+ * Fixed-memory histogram of nanosecond durations with logarithmic buckets (similar to HdrHistogram).<br>
+ * Every power of two is split into {@link #SUB_BUCKETS} linear sub-buckets, so the relative error of a
+ * reported percentile is at most 1 / {@link #SUB_BUCKETS}. Recording a value does not allocate.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values above 2^MAX_EXPONENT ns (about 18 minutes) are counted in the highest bucket. */
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long totalCount = 0, maxValue = 0;
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts[getBucketIndex(value)]++;
+		totalCount++;
+		if (value > maxValue) maxValue = value;
+	}
+
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		if (other.maxValue > maxValue) maxValue = other.maxValue;
+	}
+
+	/**
+	 * Removes the values recorded by other, which must be an earlier state of this histogram.
+	 * The maximum stays the one of all values.
+	 */
+	public void subtract(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] -= other.counts[i];
+		}
+		totalCount -= other.totalCount;
+	}
+
+	/**
+	 * Scales all bucket counts by factor.
+	 */
+	public void scale(double factor) {
+		totalCount = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = Math.round(counts[i] * factor);
+			totalCount += counts[i];
+		}
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return the highest value that is equivalent (within the histogram's precision) to the value at the given percentile
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) return 0;
+		long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts[i];
+			if (count >= countAtPercentile) {
+				return Math.min(getBucketUpperBound(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+
+	private static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) Math.min((value >>> shift) - SUB_BUCKETS, SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+}
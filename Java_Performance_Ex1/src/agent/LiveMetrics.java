@@ -0,0 +1,204 @@
+package agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes the statistics per method while the instrumented program runs, through the JMX MBean
+ * {@value #OBJECT_NAME} (option <b>jmx</b>) and a HTTP endpoint on localhost (option <b>metricsPort</b>):<br>
+ * /metrics: all calls since the agent started in the Prometheus text format<br>
+ * /snapshot: JSON of the calls since the last reset, /snapshot?reset also resets<br>
+ * <br>
+ * A reset only moves the baseline the snapshots are computed against, the statistics printed at shutdown
+ * still contain all calls. Percentiles of a snapshot are capped at the maximum of all calls.
+ */
+public class LiveMetrics implements LiveMetricsMBean {
+
+	public static final String OBJECT_NAME = "agent:type=HotMethodAgent";
+
+	private final HotMethodStatistics statistics;
+	private MethodAggregate[] baseline = new MethodAggregate[0];	//per method id, state at the last reset
+	private long baselineTime = System.currentTimeMillis();
+
+	public LiveMetrics(HotMethodStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void startHttpServer(int port) {
+		//the dispatcher thread of the server inherits the daemon flag, so the server does not keep the JVM alive
+		Thread serverStarter = new Thread(() -> {
+			try {
+				HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+				server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4", getPrometheusMetrics()));
+				server.createContext("/snapshot", exchange -> {
+					String query = exchange.getRequestURI().getQuery();
+					boolean reset = "reset".equals(query) || "reset=true".equals(query);
+					respond(exchange, "application/json", reset ? snapshotAndReset() : getSnapshot());
+				});
+				server.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "HotMethodAgent-Metrics");
+		serverStarter.setDaemon(true);
+		serverStarter.start();
+	}
+
+	private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	// --------- MBean ---------
+
+	@Override
+	public synchronized long getTrackedCalls() {
+		long calls = 0;
+		for (MethodAggregate aggregate : aggregatePerMethod(false, false).values()) {
+			calls += aggregate.getCalls();
+		}
+		return calls;
+	}
+
+	@Override
+	public synchronized String getSnapshot() {
+		return toJSON(baselineTime, System.currentTimeMillis(), aggregatePerMethod(true, false));
+	}
+
+	@Override
+	public synchronized String snapshotAndReset() {
+		long from = baselineTime, to = System.currentTimeMillis();
+		return toJSON(from, to, aggregatePerMethod(true, true));
+	}
+
+	@Override
+	public synchronized String getPrometheusMetrics() {
+		return toPrometheus(aggregatePerMethod(false, false));
+	}
+
+	/**
+	 * Merges the live statistics per called method, scaled by sampling like the printed statistics.
+	 * @param sinceReset - only the calls since the last reset
+	 * @param reset - the current state becomes the new baseline
+	 */
+	private Map<String, MethodAggregate> aggregatePerMethod(boolean sinceReset, boolean reset) {
+		MethodAggregate[] current = statistics.getLiveAggregates();
+		long[] invocationCounts = HotMethodLogger.getInvocationCounts();
+		Map<String, MethodAggregate> methodAggregates = new HashMap<>();
+		for (int methodId = 0; methodId < current.length; methodId++) {
+			if (current[methodId] == null) continue;
+			MethodAggregate aggregate = new MethodAggregate();
+			aggregate.mergeTimes(current[methodId]);
+			if (sinceReset && methodId < baseline.length && baseline[methodId] != null) {
+				aggregate.subtract(baseline[methodId]);
+			}
+			if (aggregate.getCalls() <= 0) continue;
+			long calls = current[methodId].getCalls();
+			if (invocationCounts != null && methodId < invocationCounts.length && invocationCounts[methodId] > calls) {
+				aggregate.scale((double) invocationCounts[methodId] / calls);
+			}
+			methodAggregates.computeIfAbsent(MethodRegistry.getCalledMethod(methodId), k -> new MethodAggregate()).mergeTimes(aggregate);
+		}
+		if (reset) {
+			baseline = current;
+			baselineTime = System.currentTimeMillis();
+		}
+		return methodAggregates;
+	}
+
+	// --------- Formats ---------
+
+	private static String toJSON(long from, long to, Map<String, MethodAggregate> methodAggregates) {
+		List<String> methods = new ArrayList<>(methodAggregates.keySet());
+		methods.sort(Comparator.comparingLong((String method) -> methodAggregates.get(method).selfWallTime).reversed());
+
+		StringBuilder json = new StringBuilder();
+		json.append(String.format("{\"from\":%d,\"to\":%d,\"methods\":[", from, to));
+		for (int i = 0; i < methods.size(); i++) {
+			MethodAggregate aggregate = methodAggregates.get(methods.get(i));
+			if (i > 0) json.append(',');
+			json.append(String.format("\n{\"method\":\"%s\",\"calls\":%d,\"exceptionalCalls\":%d,"
+					+ "\"selfWallTimeNanos\":%d,\"selfCPUTimeNanos\":%d,\"wallTimeNanos\":%d,\"cpuTimeNanos\":%d,"
+					+ "\"avgWallTimeNanos\":%.0f,\"p50WallTimeNanos\":%d,\"p90WallTimeNanos\":%d,\"p99WallTimeNanos\":%d}",
+					escape(methods.get(i)), aggregate.getCalls(), aggregate.getExceptionalCalls(),
+					aggregate.selfWallTime, aggregate.selfCPUTime, aggregate.wallTime.sum, aggregate.cpuTime.sum,
+					aggregate.wallTime.getAverage(), aggregate.wallTimeHistogram.getValueAtPercentile(50),
+					aggregate.wallTimeHistogram.getValueAtPercentile(90), aggregate.wallTimeHistogram.getValueAtPercentile(99)));
+		}
+		return json.append("]}").toString();
+	}
+
+	private static String toPrometheus(Map<String, MethodAggregate> methodAggregates) {
+		List<String> methods = new ArrayList<>(methodAggregates.keySet());
+		methods.sort(null);
+		double seconds = HotMethodStatistics.nanosToSeconds;
+
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP hotmethod_wall_seconds Wall time of the tracked calls, including tracked callees.\n");
+		text.append("# TYPE hotmethod_wall_seconds summary\n");
+		for (String method : methods) {
+			MethodAggregate aggregate = methodAggregates.get(method);
+			String label = "method=\"" + escape(method) + "\"";
+			for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+				text.append(String.format("hotmethod_wall_seconds{%s,quantile=\"%s\"} %s\n", label, quantile,
+						aggregate.wallTimeHistogram.getValueAtPercentile(100 * quantile) / seconds));
+			}
+			text.append(String.format("hotmethod_wall_seconds_sum{%s} %s\n", label, aggregate.wallTime.sum / seconds));
+			text.append(String.format("hotmethod_wall_seconds_count{%s} %d\n", label, aggregate.getCalls()));
+		}
+		appendCounter(text, "hotmethod_cpu_seconds_total", "Cpu time of the tracked calls, including tracked callees.",
+				methods, method -> methodAggregates.get(method).cpuTime.sum / seconds);
+		appendCounter(text, "hotmethod_self_wall_seconds_total", "Wall time of the tracked calls without tracked callees.",
+				methods, method -> methodAggregates.get(method).selfWallTime / seconds);
+		appendCounter(text, "hotmethod_self_cpu_seconds_total", "Cpu time of the tracked calls without tracked callees.",
+				methods, method -> methodAggregates.get(method).selfCPUTime / seconds);
+		appendCounter(text, "hotmethod_exceptions_total", "Tracked calls that exited by throwing an exception.",
+				methods, method -> (double) methodAggregates.get(method).getExceptionalCalls());
+		return text.toString();
+	}
+
+	private static void appendCounter(StringBuilder text, String name, String help, List<String> methods,
+			ToDoubleFunction<String> value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" counter\n");
+		for (String method : methods) {
+			text.append(String.format("%s{method=\"%s\"} %s\n", name, escape(method), value.applyAsDouble(method)));
+		}
+	}
+
+	/**
+	 * Escapes a method name for JSON strings and Prometheus label values.
+	 */
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
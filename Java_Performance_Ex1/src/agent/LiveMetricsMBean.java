@@ -0,0 +1,30 @@
+package agent;
+
+/**
+ * JMX interface of the {@link LiveMetrics}.<br>
+ * Every read first lets the instrumented threads flush their buffers of the fast mode and may therefore block
+ * for up to 100ms if a thread makes no calls (see {@link HotMethodStatistics#getLiveAggregates()}).
+ */
+public interface LiveMetricsMBean {
+
+	/**
+	 * @return the number of tracked calls since the agent started, scaled by sampling like the other statistics
+	 */
+	public long getTrackedCalls();
+
+	/**
+	 * @return JSON of the statistics per method since the last reset
+	 */
+	public String getSnapshot();
+
+	/**
+	 * @return JSON of the statistics per method since the last reset, the next snapshot starts after it
+	 */
+	public String snapshotAndReset();
+
+	/**
+	 * @return the statistics per method since the agent started in the Prometheus text format
+	 */
+	public String getPrometheusMetrics();
+
+}
@@ -0,0 +1,110 @@
+package agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wall and cpu time statistics of all calls of one method id (see {@link MethodRegistry}).
+ */
+public class MethodAggregate {
+
+	protected final OnlineStatistic wallTime = new OnlineStatistic(), cpuTime = new OnlineStatistic();
+	protected final LatencyHistogram wallTimeHistogram = new LatencyHistogram(), cpuTimeHistogram = new LatencyHistogram();
+	protected long selfWallTime = 0, selfCPUTime = 0;	//sums without the time of tracked callees
+	protected Map<String, Long> exceptions = null;	//exception class name -> number of calls that threw it, created on demand
+	protected long exceptionalCalls = 0;
+	protected Object[] slowestCallArguments = null;	//fast mode with args=true, formatted when the statistics are printed
+
+	/**
+	 * @param selfWallTime, selfCPUTime - time of the call without the time of the tracked calls it made
+	 */
+	public void record(long wallTimePassed, long cpuTimePassed, long selfWallTime, long selfCPUTime) {
+		this.selfWallTime += selfWallTime;
+		this.selfCPUTime += selfCPUTime;
+		wallTime.record(wallTimePassed);
+		cpuTime.record(cpuTimePassed);
+		wallTimeHistogram.record(wallTimePassed);
+		cpuTimeHistogram.record(cpuTimePassed);
+	}
+
+	/**
+	 * Keeps the arguments of the call if it is the slowest one so far (must be called after its {@link #record(long, long, long, long)}).
+	 */
+	public void recordArguments(Object[] args, long wallTimePassed) {
+		if (wallTimePassed >= wallTime.max) slowestCallArguments = args;
+	}
+
+	/**
+	 * Records that a call exited by throwing an exception (its time is recorded by {@link #record(long, long, long, long)}).
+	 */
+	public void recordException(String exceptionClassName) {
+		if (exceptions == null) exceptions = new HashMap<>();
+		exceptions.merge(exceptionClassName, 1L, Long::sum);
+		exceptionalCalls++;
+	}
+
+	public void merge(MethodAggregate other) {
+		if (other.slowestCallArguments != null && (slowestCallArguments == null || other.wallTime.max > wallTime.max)) {
+			slowestCallArguments = other.slowestCallArguments;
+		}
+		mergeTimes(other);
+		if (other.exceptions != null) {
+			for (Map.Entry<String, Long> exception : other.exceptions.entrySet()) {
+				if (exceptions == null) exceptions = new HashMap<>();
+				exceptions.merge(exception.getKey(), exception.getValue(), Long::sum);
+			}
+		}
+	}
+
+	/**
+	 * Merges everything but the exception classes (only their number), so other may be recorded to concurrently
+	 * by its thread (see {@link LiveMetrics}), calls recorded meanwhile may be partially included.
+	 */
+	public void mergeTimes(MethodAggregate other) {
+		selfWallTime += other.selfWallTime;
+		selfCPUTime += other.selfCPUTime;
+		exceptionalCalls += other.exceptionalCalls;
+		wallTime.merge(other.wallTime);
+		cpuTime.merge(other.cpuTime);
+		wallTimeHistogram.merge(other.wallTimeHistogram);
+		cpuTimeHistogram.merge(other.cpuTimeHistogram);
+	}
+
+	/**
+	 * Removes the calls of other, which must be an earlier state of this aggregate (the exception classes are kept).
+	 */
+	public void subtract(MethodAggregate other) {
+		selfWallTime -= other.selfWallTime;
+		selfCPUTime -= other.selfCPUTime;
+		exceptionalCalls -= other.exceptionalCalls;
+		wallTime.subtract(other.wallTime);
+		cpuTime.subtract(other.cpuTime);
+		wallTimeHistogram.subtract(other.wallTimeHistogram);
+		cpuTimeHistogram.subtract(other.cpuTimeHistogram);
+	}
+
+	/**
+	 * Scales counts and sums by factor, used to extrapolate sampled calls to all calls.
+	 */
+	public void scale(double factor) {
+		selfWallTime = Math.round(selfWallTime * factor);
+		selfCPUTime = Math.round(selfCPUTime * factor);
+		wallTime.scale(factor);
+		cpuTime.scale(factor);
+		wallTimeHistogram.scale(factor);
+		cpuTimeHistogram.scale(factor);
+		exceptionalCalls = Math.round(exceptionalCalls * factor);
+		if (exceptions != null) {
+			exceptions.replaceAll((exception, count) -> Math.round(count * factor));
+		}
+	}
+
+	public long getCalls() {
+		return wallTime.count;
+	}
+
+	public long getExceptionalCalls() {
+		return exceptionalCalls;
+	}
+
+}
@@ -2,14 +2,14 @@ package agent;
 
 public class MethodCall {
 
+	protected final int methodId;
 	protected final String caller, callee, args;
 	protected final long threadID, wallClockTimeNanos, cpuTimeNanos;
+	protected long childWallTimeNanos = 0, childCPUTimeNanos = 0;	//time spent in tracked calls made by this call
 	
-	//set after a methodcall finished for the purpose of gathering MethodStatistics
-	protected long wallTimePassedNanos, cpuTimePassedNanos;
-	
-	public MethodCall(String caller, String callee, String args, long threadID, long callTimeNanoSeconds, long cpuTime) {
+	public MethodCall(int methodId, String caller, String callee, String args, long threadID, long callTimeNanoSeconds, long cpuTime) {
 		super();
+		this.methodId = methodId;
 		this.caller = caller;
 		this.callee = callee;
 		this.args = args;
@@ -20,7 +20,7 @@ public class MethodCall {
 
 	@Override
 	public String toString() {
-		return "MethodCall [caller=" + caller + ", callee=" + callee + ", args=" + args + ", threadID=" + threadID
+		return "MethodCall [methodId=" + methodId + ", caller=" + caller + ", callee=" + callee + ", args=" + args + ", threadID=" + threadID
 				+ ", wallClockTime=" + wallClockTimeNanos + ", cpuTime=" + cpuTimeNanos + "]";
 	}
 	
@@ -0,0 +1,52 @@
+package agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns dense integer ids to (call site, called method) pairs.<br>
+ * Ids are assigned by the {@link MixedTransformer} at transform time and emitted as constants into the
+ * instrumented bytecode, so the {@link HotMethodLogger} only has to deal with primitive values at runtime.
+ * The names are stored in a table indexed by the id, which can be read without locking.
+ */
+public class MethodRegistry {
+
+	private static final Map<String, Map<String, Integer>> methodIds = new HashMap<>();
+	private static volatile String[] callSites = new String[256], calledMethods = new String[256];
+	private static int size = 0;
+
+	/**
+	 * Returns the id of the (callSite, calledMethod) pair, registering it if necessary.<br>
+	 * Only called at transform time.
+	 */
+	public static synchronized int getMethodId(String callSite, String calledMethod) {
+		Map<String, Integer> calledMethodIds = methodIds.computeIfAbsent(callSite, k -> new HashMap<>());
+		Integer id = calledMethodIds.get(calledMethod);
+		if (id == null) {
+			id = size;
+			if (size == callSites.length) {
+				calledMethods = Arrays.copyOf(calledMethods, 2 * size);
+				callSites = Arrays.copyOf(callSites, 2 * size);
+			}
+			calledMethods[size] = calledMethod;
+			callSites[size] = callSite;
+			calledMethodIds.put(calledMethod, id);
+			size++;
+		}
+		return id;
+	}
+
+	public static String getCallSite(int methodId) {
+		return callSites[methodId];
+	}
+
+	public static String getCalledMethod(int methodId) {
+		return calledMethods[methodId];
+	}
+
+	public static synchronized int size() {
+		return size;
+	}
+
+}
@@ -6,19 +6,26 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
 import javassist.CtBehavior;
 import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.LoaderClassPath;
 import javassist.Modifier;
 import javassist.NotFoundException;
 import javassist.bytecode.BadBytecode;
 import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
 import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
 import javassist.bytecode.MethodInfo;
 import javassist.bytecode.Opcode;
 import javassist.expr.ExprEditor;
@@ -28,54 +35,110 @@ import javassist.expr.NewExpr;
 public class MixedTransformer implements ClassFileTransformer {
 	
 	protected static final String loggerClassName = HotMethodLogger.class.getName();
-	protected static final List<Integer> methodCallOpcodes = Arrays.asList(new Integer[] {
-			Opcode.INVOKEDYNAMIC, Opcode.INVOKEINTERFACE, Opcode.INVOKESPECIAL, Opcode.INVOKESTATIC, Opcode.INVOKEVIRTUAL
-	});
+	//call site of the methods instrumented at entry and exit, the actual caller is not known there
+	protected static final String UNKNOWN_CALLER = "(any caller)";
+	protected final ClassFilter classFilter;
+	protected final boolean fastMode, captureArguments;
+	protected final boolean sampling;
+	protected final boolean instrumentMethods;
 	
-	protected final List<String> includedClasses;
+	//one pool per class loader, so that the classes are looked up where the transformed class is loaded from
+	//and the parsed classes of called methods are reused for all classes of the loader
+	private final Map<ClassLoader, ClassPool> classPools = new WeakHashMap<>();
+	private final Map<String, List<String>> argumentTypesCache = new ConcurrentHashMap<>();	//descriptor -> argument types
 	
-	public MixedTransformer(List<String> includedPackages) {
-		final ArrayList<String> includedClasses = new ArrayList<>();
-		for (String clazz : includedPackages) {
-			includedClasses.add(clazz.replace('.', '/'));
-		}
-		this.includedClasses = Collections.unmodifiableList(includedClasses);
+	public MixedTransformer(AgentOptions options) {
+		this.classFilter = new ClassFilter(options.getIncludedClasses(), options.getExcludedClasses());
+		this.fastMode = options.isFastMode();
+		this.captureArguments = !fastMode || options.isCapturingArguments();
+		this.sampling = options.getSampleRate() > 0 || options.getSampleIntervalMicros() > 0;
+		this.instrumentMethods = options.isInstrumentingMethods();
 	}
 	
 	@Override
 	public byte[] transform(ClassLoader loader, String name, Class<?> ___, ProtectionDomain __, byte[] classfile)
 			throws IllegalClassFormatException {
 		try {
-			if (name == null || !includedClasses.contains(name)) {
+			if (name == null || !isIncluded(name)) {
 				return classfile;	//not included -> do not transform
 			}
 			
-			ClassPool cp = ClassPool.getDefault();
+			ClassPool cp = getClassPool(loader);
 			CtClass clazz = cp.makeClass(new ByteArrayInputStream(classfile));
 			
 			if (HotMethodAgent.DEBUG) System.out.printf("----------------------------- START TRANSFORMING %s -----------------------------%n", clazz.getName());
 			
 			for (CtBehavior method : clazz.getDeclaredBehaviors()) {
-				transform(method); // transform behaviors (=methods and constructors)
+				transform(method, cp); // transform behaviors (=methods and constructors)
 			}
 			
 			if (HotMethodAgent.DEBUG) System.out.printf("----------------------------- STOP TRANSFORMING %s -----------------------------%n", clazz.getName());
-			return clazz.toBytecode(); // return transformed class
+			byte[] transformed = clazz.toBytecode();
+			clazz.detach();		//the class is made again from the original class file if it is retransformed
+			return transformed; // return transformed class
 		} catch (IOException | RuntimeException | CannotCompileException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 	
-	private void transform(CtBehavior method) {
+	/**
+	 * @param className - name in internal form, e.g. "sorting/QuickSort"
+	 */
+	public boolean isIncluded(String className) {
+		return classFilter.isIncluded(className);
+	}
+	
+	private synchronized ClassPool getClassPool(ClassLoader loader) {
+		ClassPool pool = classPools.get(loader);
+		if (pool == null) {
+			pool = new ClassPool(true);
+			if (loader != null) pool.appendClassPath(new LoaderClassPath(loader));
+			classPools.put(loader, pool);
+		}
+		return pool;
+	}
+	
+	private static boolean isMethodCall(int opcode) {
+		//INVOKEDYNAMIC is not included since the ExprEditor does not report it (it would be matched with the wrong method)
+		switch (opcode) {
+		case Opcode.INVOKEINTERFACE:
+		case Opcode.INVOKESPECIAL:
+		case Opcode.INVOKESTATIC:
+		case Opcode.INVOKEVIRTUAL:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private void transform(CtBehavior method, ClassPool cp) {
 		if (isNative(method) || isAbstract(method))
 			return;
 		if (HotMethodAgent.DEBUG) System.out.printf("----- TRANSFORMING METHOD %s%s -----%n", method.getName(), method.getSignature());
+		if (instrumentMethods) {
+			transformEntryAndExit(method, cp);
+		}
+		else {
+			transformCallSites(method, cp);
+		}
+	}
+	
+	/**
+	 * Wraps every call in the method.
+	 */
+	private void transformCallSites(CtBehavior method, ClassPool cp) {
 		MethodInfo methodInfo = method.getMethodInfo();
 		CodeIterator codeIterator = methodInfo.getCodeAttribute().iterator();
 		
+		String callSiteName = method.getDeclaringClass().getName() + "." + method.getName();
+		
+		//local variable that remembers whether the current call is sampled (call sites in a method never overlap)
+		int sampleFlagLocal = methodInfo.getCodeAttribute().getMaxLocals();
+		
 		try {
-			final QueueMap<Integer, CtBehavior> lineToCalledMethods = new QueueMap<>();
+			//called methods by the index of their invoke instruction in the original code
+			final Map<Integer, CtBehavior> calledMethods = new HashMap<>();
 			
 			method.instrument(new ExprEditor() {
 				@Override
@@ -85,7 +148,7 @@ public class MixedTransformer implements ClassFileTransformer {
 							System.out.printf("INFO: Constructor \"%s\" is being called by \"%s\" from line number %d. [bytecode index=%d]%n", 
 									expr.getConstructor().getName(), method.getName(), expr.getLineNumber(), expr.indexOfBytecode());
 						}
-						lineToCalledMethods.add(expr.getLineNumber(), expr.getConstructor());
+						calledMethods.put(expr.indexOfBytecode(), expr.getConstructor());
 					} catch (NotFoundException e) {
 						e.printStackTrace();
 					}
@@ -98,48 +161,147 @@ public class MixedTransformer implements ClassFileTransformer {
 							System.out.printf("INFO: Method \"%s\" is being called by \"%s\" from line number %d. [bytecode index=%d]%n", 
 									mc.getMethodName(), method.getName(), mc.getLineNumber(), mc.indexOfBytecode());
 						}
-						lineToCalledMethods.add(mc.getLineNumber(), mc.getMethod());
+						calledMethods.put(mc.indexOfBytecode(), mc.getMethod());
 					} catch (NotFoundException e) {
 						e.printStackTrace();
 					}
 				}
 			});
 			
+			//the indices of the original code shift while inserting, so the calls are matched by their order
+			List<Integer> callIndices = getCallIndices(codeIterator);
+			boolean instrumented = false;
+			ExceptionTable exceptionTable = methodInfo.getCodeAttribute().getExceptionTable();
+			int call = 0;
 			codeIterator.begin();
 			while (codeIterator.hasNext()) {
 				int nextInstrIndex = codeIterator.lookAhead();
 				int nextInstrOpcode = codeIterator.byteAt(nextInstrIndex);
-				int lineNumber = methodInfo.getLineNumber(nextInstrIndex);
 				
-				if (methodCallOpcodes.contains(nextInstrOpcode)) {
-					CtBehavior calledMethod = lineToCalledMethods.remove(lineNumber);
+				if (isMethodCall(nextInstrOpcode)) {
+					CtBehavior calledMethod = calledMethods.get(callIndices.get(call++));
 					
-					if (calledMethod != null) {		//only include methods that were detected by the ExprEditor
+					if (calledMethod != null) {		//only include methods that were detected by the ExprEditor (not this()/super())
 						if (HotMethodAgent.DEBUG) {
 							System.out.printf("Next call from bytecode: [bytecode=%d, linenum = %d] %s%n", 
-									nextInstrIndex, lineNumber, calledMethod.getName());
+									nextInstrIndex, methodInfo.getLineNumber(nextInstrIndex), calledMethod.getName());
 						}
 						
+						int methodId = getMethodId(callSiteName, calledMethod);
 						//produce Bytecode before method and insert (before method call)
-						codeIterator.insert(getCodeBefore(method, calledMethod));
+						List<String> argTypes = getArgumentTypes(calledMethod.getMethodInfo2().getDescriptor());
+						codeIterator.insert(getCodeBefore(methodInfo, argTypes, -1, methodId, sampleFlagLocal));
 						//go to actual method call bytecode, next() is now the next bytecode after method call
-						codeIterator.next();
-						//produce Bytecode after method and insert (before next bytecode)
-						codeIterator.insert(getCodeAfter(method, calledMethod));
+						int callIndex = codeIterator.next();
+						int callEnd = codeIterator.lookAhead();
+						//produce Bytecode after method and the exception handler of the call and insert them (before next bytecode)
+						//exclusive: jumps to the next bytecode must not execute the inserted code
+						//the handler is placed right behind the call, so that the rethrown exception is still covered
+						//by the exception handlers of the method that cover the call
+						byte[] codeAfter = getCodeAfter(methodInfo, getReturnType(calledMethod), methodId, sampleFlagLocal);
+						byte[] handlerCode = getExceptionHandlerCode(methodInfo, methodId, sampleFlagLocal);
+						codeIterator.insertEx(getCodeAfterWithHandler(methodInfo, codeAfter, handlerCode));
+						//added in front: the handler of the call comes before the handlers of the method
+						exceptionTable.add(0, callIndex, callEnd, callEnd + codeAfter.length + 3, 0);	//catch type 0: any exception
+						instrumented = true;
 						continue;
 					}
 				}
 				codeIterator.next();
 			}
 			
-			//finalize
+			//finalize (methods without call sites are left untouched)
+			if (!instrumented) return;
+			if (sampling) methodInfo.getCodeAttribute().setMaxLocals(sampleFlagLocal + 1);
 			methodInfo.getCodeAttribute().computeMaxStack();
-			methodInfo.rebuildStackMap(ClassPool.getDefault());
+			methodInfo.rebuildStackMap(cp);
 		} catch (CannotCompileException | BadBytecode e) {
 			e.printStackTrace();
 		}
 	}
-
+	
+	/**
+	 * @return the indices of all call instructions in the code, in order
+	 */
+	private static List<Integer> getCallIndices(CodeIterator codeIterator) throws BadBytecode {
+		List<Integer> callIndices = new ArrayList<>();
+		codeIterator.begin();
+		while (codeIterator.hasNext()) {
+			int index = codeIterator.next();
+			if (isMethodCall(codeIterator.byteAt(index))) callIndices.add(index);
+		}
+		return callIndices;
+	}
+	
+	/**
+	 * Tracks the method itself: from its entry to every return and to an exception leaving it.<br>
+	 * Constructors are tracked from after this()/super(), so the time spent in the super constructor is not included.
+	 */
+	private void transformEntryAndExit(CtBehavior method, ClassPool cp) {
+		MethodInfo methodInfo = method.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		CodeIterator codeIterator = codeAttribute.iterator();
+		
+		int methodId = getMethodId(UNKNOWN_CALLER, method);
+		String returnType = getReturnType(method);
+		int sampleFlagLocal = codeAttribute.getMaxLocals();
+		
+		try {
+			//entry, exclusive: a jump back to the first instruction must not execute it again,
+			//in constructors after this()/super() like the exception handler, so that every entry has an exit
+			int firstArgumentLocal = Modifier.isStatic(method.getModifiers()) ? 0 : 1;
+			byte[] entryCode = getCodeBefore(methodInfo, getArgumentTypes(methodInfo.getDescriptor()), firstArgumentLocal, methodId, sampleFlagLocal);
+			codeIterator.insertEx(getBodyStart(method, codeIterator), entryCode);
+			
+			//normal exits, inclusive: jumps to a return instruction execute the inserted code
+			codeIterator.begin();
+			while (codeIterator.hasNext()) {
+				int nextInstrIndex = codeIterator.lookAhead();
+				if (isReturn(codeIterator.byteAt(nextInstrIndex))) {
+					codeIterator.insert(getCodeAfter(methodInfo, returnType, methodId, sampleFlagLocal));
+				}
+				codeIterator.next();
+			}
+			
+			//exceptional exit: a handler for any exception that covers the whole method after the entry code,
+			//this()/super() must not be covered since the handler would see an uninitialized this
+			int start = getBodyStart(method, codeIterator) + entryCode.length;
+			int handler = codeIterator.append(getExceptionHandlerCode(methodInfo, methodId, sampleFlagLocal));
+			codeAttribute.getExceptionTable().add(start, handler, handler, 0);	//catch type 0: any exception
+			
+			if (sampling) codeAttribute.setMaxLocals(sampleFlagLocal + 1);
+			codeAttribute.computeMaxStack();
+			methodInfo.rebuildStackMap(cp);
+		} catch (BadBytecode e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return the position after this()/super() in constructors, otherwise 0
+	 */
+	private static int getBodyStart(CtBehavior method, CodeIterator codeIterator) throws BadBytecode {
+		codeIterator.begin();
+		if (method instanceof CtConstructor && codeIterator.skipConstructor() >= 0) {
+			return codeIterator.lookAhead();
+		}
+		return 0;
+	}
+	
+	private static boolean isReturn(int opcode) {
+		switch (opcode) {
+		case Opcode.RETURN:
+		case Opcode.IRETURN:
+		case Opcode.LRETURN:
+		case Opcode.FRETURN:
+		case Opcode.DRETURN:
+		case Opcode.ARETURN:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
 	private boolean isNative(CtBehavior method) {
 		return Modifier.isNative(method.getModifiers());
 	}
@@ -148,85 +310,156 @@ public class MixedTransformer implements ClassFileTransformer {
 		return Modifier.isAbstract(method.getModifiers());
 	}
 	
-	private byte[] getCodeBefore(CtBehavior callSite, CtBehavior calledMethod) {
-		CtClass calledClass = calledMethod.getDeclaringClass();
-		boolean calledClassWasFrozen = calledClass.isFrozen();
-		if (calledClassWasFrozen) calledClass.defrost();
-		
-		MethodInfo callerInfo = callSite.getMethodInfo();
-		MethodInfo calleeInfo = calledMethod.getMethodInfo();
-		
-		List<String> argTypes = getArgumentTypes(calleeInfo.getDescriptor());
+	/**
+	 * @param firstArgumentLocal - local variable index of the first argument, or -1 if the arguments are on the stack
+	 */
+	private byte[] getCodeBefore(MethodInfo callerInfo, List<String> argTypes, int firstArgumentLocal, int methodId, int sampleFlagLocal) {
 		Bytecode code = new Bytecode(callerInfo.getConstPool());
 		BytecodeHelper helper = new BytecodeHelper(code);
 		
+		int skipBranch = -1;
+		
+		// [
+		if (sampling) {
+			helper.pushSampleSkipFlag(loggerClassName, methodId);
+			code.add(Opcode.DUP);
+			code.addIstore(sampleFlagLocal);
+			skipBranch = helper.addBranch(Opcode.IFNE);
+		}
 		// [
-		helper.pushArgumentsArray(argTypes);
-		// [ args
-		code.addLdc(callSite.getDeclaringClass().getName() + "." + callSite.getName());
-		// [ args, callSite
-		code.addLdc(calledMethod.getDeclaringClass().getName() + "." + calledMethod.getName());
-		// [ args, callSite, calledMethodName
-		code.addInvokestatic(loggerClassName, "startTrackingMethod", "([Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;)V");
+		if (captureArguments) {
+			if (firstArgumentLocal < 0) {
+				helper.pushArgumentsArray(argTypes);
+			} else {
+				helper.pushArgumentsArrayFromLocals(argTypes, firstArgumentLocal);
+			}
+			// [ args
+		}
+		code.addIconst(methodId);
+		// [ (args), methodId
+		if (captureArguments) {
+			code.addInvokestatic(loggerClassName, "startTrackingMethod", "([Ljava/lang/Object;I)V");
+		} else {
+			code.addInvokestatic(loggerClassName, "startTrackingMethod", "(I)V");
+		}
 		// [
+		if (sampling) helper.setBranchTarget(skipBranch);
 		
-		if (calledClassWasFrozen) calledClass.freeze();
 		return code.get();
 	}
 	
-	private byte[] getCodeAfter(CtBehavior callSite, CtBehavior calledMethod) {
-		CtClass calledClass = calledMethod.getDeclaringClass();
-		boolean calledClassWasFrozen = calledClass.isFrozen();
-		if (calledClassWasFrozen) calledClass.defrost();
-		
-		MethodInfo callerInfo = callSite.getMethodInfo();
-		MethodInfo calleeInfo = calledMethod.getMethodInfo();
-		
-		String returnType = calleeInfo.getDescriptor().substring(calleeInfo.getDescriptor().indexOf(')') + 1);
+	private byte[] getCodeAfter(MethodInfo callerInfo, String returnType, int methodId, int sampleFlagLocal) {
 		Bytecode code = new Bytecode(callerInfo.getConstPool());
 		BytecodeHelper helper = new BytecodeHelper(code);
 		
+		int skipBranch = -1;
+		
 		// [ 
-		helper.duplicateReturnValue(returnType);
-		// [ return-value
-		code.addLdc(callSite.getDeclaringClass().getName() + "." + callSite.getName());
-		// [ return-value, callSite
-		code.addLdc(calledMethod.getDeclaringClass().getName() + "." + calledMethod.getName());
-		// [ return-value, callSite, calledMethodName
-		code.addInvokestatic(loggerClassName, "stopTrackingMethod", "(Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;)V");
+		if (sampling) {
+			code.addIload(sampleFlagLocal);
+			skipBranch = helper.addBranch(Opcode.IFNE);
+		}
+		// [ 
+		if (!fastMode) {	//return value is only logged in trace mode
+			helper.duplicateReturnValue(returnType);
+			// [ return-value
+		}
+		code.addIconst(methodId);
+		// [ (return-value), methodId
+		if (fastMode) {
+			code.addInvokestatic(loggerClassName, "stopTrackingMethod", "(I)V");
+		} else {
+			code.addInvokestatic(loggerClassName, "stopTrackingMethod", "(Ljava/lang/Object;I)V");
+		}
 		// [
+		if (sampling) helper.setBranchTarget(skipBranch);
+		
+		return code.get();
+	}
+	
+	/**
+	 * Handler for any exception leaving the tracked code: records the exceptional exit and rethrows the exception.
+	 */
+	private byte[] getExceptionHandlerCode(MethodInfo callerInfo, int methodId, int sampleFlagLocal) {
+		Bytecode code = new Bytecode(callerInfo.getConstPool());
+		BytecodeHelper helper = new BytecodeHelper(code);
+		
+		int skipBranch = -1;
+		
+		// [ exception
+		if (sampling) {
+			code.addIload(sampleFlagLocal);
+			skipBranch = helper.addBranch(Opcode.IFNE);
+		}
+		code.add(Opcode.DUP);
+		code.addIconst(methodId);
+		// [ exception, exception, methodId
+		code.addInvokestatic(loggerClassName, "stopTrackingMethodExceptionally", "(Ljava/lang/Throwable;I)V");
+		// [ exception
+		if (sampling) helper.setBranchTarget(skipBranch);
+		code.add(Opcode.ATHROW);
 		
-		if (calledClassWasFrozen) calledClass.freeze();
 		return code.get();
 	}
 	
+	/**
+	 * Joins the code after a call with its exception handler, which is jumped over after a normal return:<br>
+	 * <code>codeAfter, GOTO end, handlerCode, end:</code>
+	 */
+	private byte[] getCodeAfterWithHandler(MethodInfo callerInfo, byte[] codeAfter, byte[] handlerCode) {
+		Bytecode code = new Bytecode(callerInfo.getConstPool());
+		BytecodeHelper helper = new BytecodeHelper(code);
+		for (byte b : codeAfter) {
+			code.add(b);
+		}
+		int skipHandler = helper.addBranch(Opcode.GOTO);
+		for (byte b : handlerCode) {
+			code.add(b);
+		}
+		helper.setBranchTarget(skipHandler);
+		return code.get();
+	}
+	
+	/**
+	 * Registers the (callSite, calledMethod) pair in the {@link MethodRegistry}.
+	 */
+	private int getMethodId(String callSite, CtBehavior calledMethod) {
+		return MethodRegistry.getMethodId(callSite, calledMethod.getDeclaringClass().getName() + "." + calledMethod.getName());
+	}
+	
 	// --------- Helper Methods for generating Bytecode ---------
 	
 	/**
-	 * Gets a List of Strings from a descriptor, one element being one argument type of the method described.
+	 * getMethodInfo2: the class of the method may be frozen, its method info is only read.
+	 */
+	private static String getReturnType(CtBehavior method) {
+		String descriptor = method.getMethodInfo2().getDescriptor();
+		return descriptor.substring(descriptor.indexOf(')') + 1);
+	}
+	
+	/**
+	 * Gets a List of Strings from a descriptor, one element being one argument type of the method described.<br>
+	 * Every descriptor is only parsed once.
 	 * @param descriptor - example: ([Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;IJ)V
 	 * @return
 	 */
 	private List<String> getArgumentTypes(String descriptor) {
+		return argumentTypesCache.computeIfAbsent(descriptor, MixedTransformer::parseArgumentTypes);
+	}
+	
+	private static List<String> parseArgumentTypes(String descriptor) {
 		List<String> result = new ArrayList<>();
-		for(int i = 1; descriptor.charAt(i) != ')'; i++) {
-			char c = descriptor.charAt(i);
-			String type = "";
-			while(c == '[') {	//array "depth"
-				type += "[";
+		for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+			int start = i;
+			while (descriptor.charAt(i) == '[') {	//array "depth"
 				i++;
-				c = descriptor.charAt(i);
 			}
-			if (c == 'L') {		//object type
-				int semicolon = descriptor.indexOf(";", i + 1);
-				type += descriptor.substring(i, semicolon + 1);
-				i = semicolon;
-			} else {			//primitive type
-				type += c;
+			if (descriptor.charAt(i) == 'L') {		//object type
+				i = descriptor.indexOf(';', i + 1);
 			}
-			result.add(type);
+			result.add(descriptor.substring(start, i + 1));
 		}
-		return result;
+		return Collections.unmodifiableList(result);
 	}
 	
 }
@@ -0,0 +1,86 @@
+package agent;
+
+/**
+ * Aggregates a stream of values in constant memory: count, sum, min, max and
+ * the variance using Welford's online algorithm.
+ */
+public class OnlineStatistic {
+
+	protected long count = 0, sum = 0;
+	protected long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+	protected double mean = 0, m2 = 0;	//m2 = sum of squared differences from the mean
+
+	public void record(long value) {
+		count++;
+		sum += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+	}
+
+	/**
+	 * Adds all values recorded by other to this statistic (parallel variant of Welford's algorithm by Chan et al.).
+	 */
+	public void merge(OnlineStatistic other) {
+		if (other.count == 0) return;
+		if (count == 0) {
+			count = other.count; sum = other.sum;
+			min = other.min; max = other.max;
+			mean = other.mean; m2 = other.m2;
+			return;
+		}
+		long newCount = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / newCount;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / newCount);
+		count = newCount;
+		sum += other.sum;
+		if (other.min < min) min = other.min;
+		if (other.max > max) max = other.max;
+	}
+
+	/**
+	 * Removes the values recorded by other, which must be an earlier state of this statistic (inverse of {@link #merge(OnlineStatistic)}).
+	 * Min and max cannot be restored, they stay the ones of all values.
+	 */
+	public void subtract(OnlineStatistic other) {
+		if (other.count == 0) return;
+		long newCount = count - other.count;
+		if (newCount <= 0) {
+			count = 0; sum = 0;
+			mean = 0; m2 = 0;
+			return;
+		}
+		double newMean = (mean * count - other.mean * other.count) / newCount;
+		double delta = other.mean - newMean;
+		m2 = Math.max(0, m2 - other.m2 - delta * delta * ((double) newCount * other.count / count));
+		mean = newMean;
+		count = newCount;
+		sum -= other.sum;
+	}
+
+	/**
+	 * Scales count and sum by factor (mean, min and max stay the same).
+	 */
+	public void scale(double factor) {
+		count = Math.round(count * factor);
+		sum = Math.round(sum * factor);
+		m2 *= factor;
+	}
+
+	public double getAverage() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	public double getVariance() {
+		return count < 2 ? 0 : m2 / (count - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+}
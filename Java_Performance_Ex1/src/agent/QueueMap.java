@@ -1,43 +0,0 @@
-package agent;
-
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
-
-/**
- * Maps the Key (K) to a Queue of Values (V).
- */
-public class QueueMap<K,V> {
-
-	private final HashMap<K, Queue<V>> map = new HashMap<>();
-	
-	public void add(K key, V value) {
-		if (value == null) return;
-		
-		Queue<V> queue = map.get(key);
-		if (queue == null) {
-			queue = new LinkedList<>();
-			map.put(key, queue);
-		}
-		queue.offer(value);
-	}
-	
-	public V remove(K key) {
-		Queue<V> queue = map.get(key);
-		if (queue == null)
-			return null;
-		else {
-			return queue.poll();
-		}
-	}
-	
-	public Set<K> keySet() {
-		return map.keySet();
-	}
-	
-	public Queue<V> getQueue(K key) {
-		return map.get(key);
-	}
-	
-}
\ No newline at end of file
@@ -0,0 +1,101 @@
+package agent;
+
+import java.util.Arrays;
+
+/**
+ * Statistics accumulator of a single thread.<br>
+ * Only the owning thread writes to it, the {@link HotMethodStatistics} merges all accumulators at report time
+ * (and, without synchronization, while the thread runs for the {@link LiveMetrics}).
+ * Memory use is bounded by the number of method ids, not by the number of calls.
+ */
+public class ThreadStatistics {
+
+	protected final long threadID;
+	protected volatile MethodAggregate[] aggregates = new MethodAggregate[64];	//indexed by method id, also read by LiveMetrics
+	protected final CallTreeNode callTree = new CallTreeNode(-1, null);	//only built if enabled (see HotMethodStatistics)
+	private CallTreeNode currentCall = callTree;
+	//sampling: invocations per method id (including the ones that were not sampled) and time of the last sample
+	protected volatile long[] invocationCounts = new long[0];	//summed at report time
+	private long[] lastSampleTimes = new long[0];
+
+	public ThreadStatistics(long threadID) {
+		this.threadID = threadID;
+	}
+
+	public void recordMethodCall(int methodId, long wallTimePassed, long cpuTimePassed, long selfWallTime, long selfCPUTime) {
+		getAggregate(methodId).record(wallTimePassed, cpuTimePassed, selfWallTime, selfCPUTime);
+	}
+
+	/**
+	 * Call tree: descends into the node of the called method.
+	 */
+	public void enterMethod(int methodId) {
+		currentCall = currentCall.getOrAddChild(methodId);
+	}
+
+	/**
+	 * Call tree: records the call in the current node and returns to its parent.<br>
+	 * Exits without an entry (e.g. calls that were running when the agent was attached) are ignored.
+	 */
+	public void exitMethod(long wallTimePassed, long cpuTimePassed) {
+		if (currentCall == callTree) return;
+		currentCall.record(wallTimePassed, cpuTimePassed);
+		currentCall = currentCall.parent;
+	}
+
+	/**
+	 * Must be called after {@link #recordMethodCall(int, long, long, long, long)} of the call, see {@link MethodAggregate#recordArguments(Object[], long)}.
+	 */
+	public void recordArguments(int methodId, Object[] args, long wallTimePassed) {
+		getAggregate(methodId).recordArguments(args, wallTimePassed);
+	}
+
+	public void recordException(int methodId, String exceptionClassName) {
+		getAggregate(methodId).recordException(exceptionClassName);
+	}
+
+	/**
+	 * Sampling: counts the invocation and decides whether it is tracked.
+	 * @param sampleRate - every sampleRate-th invocation of the method id in this thread is tracked,
+	 *                     if &lt;= 0 the first invocation after sampleIntervalNanos since the last tracked one
+	 */
+	public boolean isSampled(int methodId, long sampleRate, long sampleIntervalNanos) {
+		long[] counts = invocationCounts;
+		if (methodId >= counts.length) {
+			int newLength = Math.max(2 * counts.length, Math.max(methodId + 1, 64));
+			lastSampleTimes = Arrays.copyOf(lastSampleTimes, newLength);
+			counts = invocationCounts = Arrays.copyOf(counts, newLength);
+		}
+		long count = ++counts[methodId];
+		if (sampleRate > 0) return count % sampleRate == 0;
+		long now = System.nanoTime();
+		if (now - lastSampleTimes[methodId] >= sampleIntervalNanos) {
+			lastSampleTimes[methodId] = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the calls of the method id recorded so far (used by the calibration of the {@link HotMethodLogger}).
+	 * @return the removed calls, or null if there were none
+	 */
+	public MethodAggregate removeAggregate(int methodId) {
+		if (methodId >= aggregates.length) return null;
+		MethodAggregate aggregate = aggregates[methodId];
+		aggregates[methodId] = null;
+		return aggregate;
+	}
+
+	private MethodAggregate getAggregate(int methodId) {
+		if (methodId >= aggregates.length) {
+			aggregates = Arrays.copyOf(aggregates, Math.max(2 * aggregates.length, methodId + 1));
+		}
+		MethodAggregate aggregate = aggregates[methodId];
+		if (aggregate == null) {
+			aggregate = aggregates[methodId] = new MethodAggregate();
+		}
+		return aggregate;
+	}
+
+}
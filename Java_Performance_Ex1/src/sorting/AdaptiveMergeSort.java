@@ -0,0 +1,419 @@
+package sorting;
+
+import java.util.Arrays;
+
+/**
+ * Natural merge sort in the style of TimSort, sorts nearly sorted arrays in close to linear time.<br>
+ * The array is split into its ascending runs (strictly descending runs are reversed), runs shorter than a minimum length
+ * of 16 to 32 ints are extended with binary insertion sort. The runs are pushed on a stack and merged while the lengths
+ * on the stack do not shrink fast enough (the invariants of TimSort), so merges stay balanced.<br>
+ * A merge first skips the prefix of the left run and the suffix of the right run that are already in place,
+ * and switches to galloping (exponential search) when one run wins {@value #MIN_GALLOP} times in a row,
+ * so long stretches are copied with System.arraycopy.<br>
+ * The state of a sort is kept per call and the scratch buffer per thread, so one instance can be used by several threads.
+ */
+public class AdaptiveMergeSort implements Sorter {
+
+	private static final int MIN_MERGE = 32;	//arrays below are only binary insertion sorted
+	private static final int MIN_GALLOP = 7;
+	private static final int MAX_RUNS = 64;		//the invariants keep at most ~log_phi(n) runs on the stack
+
+	private final ThreadLocal<int[]> scratchBuffers = new ThreadLocal<>();
+
+	@Override
+	public void sort(int[] input) {
+		int n = input.length;
+		if (n < 2) return;
+		if (n < MIN_MERGE) {
+			binaryInsertionSort(input, 0, n, makeAscendingRun(input, 0, n));
+			return;
+		}
+		int[] scratch = scratchBuffers.get();
+		if (scratch == null || scratch.length < n / 2) {
+			scratch = new int[n / 2];	//a merge copies the shorter run
+			scratchBuffers.set(scratch);
+		}
+		new Merger(input, scratch).sort();
+	}
+
+	/**
+	 * @return the length of the run starting at lo, a strictly descending run is reversed
+	 */
+	private static int makeAscendingRun(int[] a, int lo, int hi) {
+		int runHi = lo + 1;
+		if (runHi == hi) return 1;
+		if (a[runHi++] < a[lo]) {
+			while (runHi < hi && a[runHi] < a[runHi - 1]) runHi++;
+			for (int i = lo, j = runHi - 1; i < j; i++, j--) {
+				int tmp = a[i];
+				a[i] = a[j];
+				a[j] = tmp;
+			}
+		}
+		else {
+			while (runHi < hi && a[runHi] >= a[runHi - 1]) runHi++;
+		}
+		return runHi - lo;
+	}
+
+	/**
+	 * Sorts a[lo, hi), of which a[lo, start) is already sorted.
+	 */
+	private static void binaryInsertionSort(int[] a, int lo, int hi, int start) {
+		for (int i = lo + start; i < hi; i++) {
+			int value = a[i];
+			int left = lo, right = i;
+			while (left < right) {
+				int mid = (left + right) >>> 1;
+				if (value < a[mid]) right = mid;
+				else left = mid + 1;
+			}
+			System.arraycopy(a, left, a, left + 1, i - left);
+			a[left] = value;
+		}
+	}
+
+	/**
+	 * @return the minimum run length for n ints, chosen so n / minRun is a power of 2 or slightly less
+	 */
+	private static int minRunLength(int n) {
+		int lowBits = 0;
+		while (n >= MIN_MERGE) {
+			lowBits |= n & 1;
+			n >>= 1;
+		}
+		return n + lowBits;
+	}
+
+	/**
+	 * @return the first k in [0, length] with a[base + k] &gt;= key, searched exponentially from base + hint
+	 */
+	private static int gallopLeft(int key, int[] a, int base, int length, int hint) {
+		int lastOffset = 0, offset = 1;
+		if (key > a[base + hint]) {
+			int maxOffset = length - hint;
+			while (offset < maxOffset && key > a[base + hint + offset]) {
+				lastOffset = offset;
+				offset = (offset << 1) + 1;
+				if (offset <= 0) offset = maxOffset;	//overflow
+			}
+			if (offset > maxOffset) offset = maxOffset;
+			lastOffset += hint;
+			offset += hint;
+		}
+		else {
+			int maxOffset = hint + 1;
+			while (offset < maxOffset && key <= a[base + hint - offset]) {
+				lastOffset = offset;
+				offset = (offset << 1) + 1;
+				if (offset <= 0) offset = maxOffset;
+			}
+			if (offset > maxOffset) offset = maxOffset;
+			int tmp = lastOffset;
+			lastOffset = hint - offset;
+			offset = hint - tmp;
+		}
+		//a[base + lastOffset] < key <= a[base + offset], binary search in between
+		lastOffset++;
+		while (lastOffset < offset) {
+			int mid = lastOffset + ((offset - lastOffset) >>> 1);
+			if (key > a[base + mid]) lastOffset = mid + 1;
+			else offset = mid;
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the first k in [0, length] with a[base + k] &gt; key, searched exponentially from base + hint
+	 */
+	private static int gallopRight(int key, int[] a, int base, int length, int hint) {
+		int lastOffset = 0, offset = 1;
+		if (key < a[base + hint]) {
+			int maxOffset = hint + 1;
+			while (offset < maxOffset && key < a[base + hint - offset]) {
+				lastOffset = offset;
+				offset = (offset << 1) + 1;
+				if (offset <= 0) offset = maxOffset;
+			}
+			if (offset > maxOffset) offset = maxOffset;
+			int tmp = lastOffset;
+			lastOffset = hint - offset;
+			offset = hint - tmp;
+		}
+		else {
+			int maxOffset = length - hint;
+			while (offset < maxOffset && key >= a[base + hint + offset]) {
+				lastOffset = offset;
+				offset = (offset << 1) + 1;
+				if (offset <= 0) offset = maxOffset;
+			}
+			if (offset > maxOffset) offset = maxOffset;
+			lastOffset += hint;
+			offset += hint;
+		}
+		//a[base + lastOffset] <= key < a[base + offset], binary search in between
+		lastOffset++;
+		while (lastOffset < offset) {
+			int mid = lastOffset + ((offset - lastOffset) >>> 1);
+			if (key < a[base + mid]) offset = mid;
+			else lastOffset = mid + 1;
+		}
+		return offset;
+	}
+
+	/**
+	 * State of a single sort: the stack of pending runs and the adaptive galloping threshold.
+	 */
+	private static class Merger {
+
+		private final int[] a, tmp;
+		private final int[] runBase = new int[MAX_RUNS], runLength = new int[MAX_RUNS];
+		private int stackSize = 0;
+		private int minGallop = MIN_GALLOP;
+
+		Merger(int[] a, int[] tmp) {
+			this.a = a;
+			this.tmp = tmp;
+		}
+
+		void sort() {
+			int n = a.length, lo = 0, remaining = n;
+			int minRun = minRunLength(n);
+			while (remaining > 0) {
+				int length = makeAscendingRun(a, lo, n);
+				if (length < minRun) {
+					int forced = Math.min(remaining, minRun);
+					binaryInsertionSort(a, lo, lo + forced, length);
+					length = forced;
+				}
+				runBase[stackSize] = lo;
+				runLength[stackSize] = length;
+				stackSize++;
+				mergeCollapse();
+				lo += length;
+				remaining -= length;
+			}
+			while (stackSize > 1) {
+				int i = stackSize - 2;
+				if (i > 0 && runLength[i - 1] < runLength[i + 1]) i--;
+				mergeAt(i);
+			}
+		}
+
+		/**
+		 * Merges runs until every run on the stack is longer than the two above it together
+		 * and longer than the one above it.
+		 */
+		private void mergeCollapse() {
+			while (stackSize > 1) {
+				int i = stackSize - 2;
+				if ((i > 0 && runLength[i - 1] <= runLength[i] + runLength[i + 1])
+						|| (i > 1 && runLength[i - 2] <= runLength[i - 1] + runLength[i])) {
+					if (runLength[i - 1] < runLength[i + 1]) i--;
+				}
+				else if (runLength[i] > runLength[i + 1]) {
+					break;
+				}
+				mergeAt(i);
+			}
+		}
+
+		/**
+		 * Merges the runs i and i + 1 of the stack.
+		 */
+		private void mergeAt(int i) {
+			int base1 = runBase[i], length1 = runLength[i];
+			int base2 = runBase[i + 1], length2 = runLength[i + 1];
+			runLength[i] = length1 + length2;
+			if (i == stackSize - 3) {
+				runBase[i + 1] = runBase[i + 2];
+				runLength[i + 1] = runLength[i + 2];
+			}
+			stackSize--;
+
+			//ints of run 1 before the first int of run 2 and ints of run 2 after the last int of run 1 are already in place
+			int skip = gallopRight(a[base2], a, base1, length1, 0);
+			base1 += skip;
+			length1 -= skip;
+			if (length1 == 0) return;
+			length2 = gallopLeft(a[base1 + length1 - 1], a, base2, length2, length2 - 1);
+			if (length2 == 0) return;
+
+			if (length1 <= length2) mergeLow(base1, length1, base2, length2);
+			else mergeHigh(base1, length1, base2, length2);
+		}
+
+		/**
+		 * Merges from the left with run 1 (the shorter one) copied to tmp.
+		 * Starts with a[base2] and ends with the last int of run 1, which the trimming in mergeAt guarantees.
+		 */
+		private void mergeLow(int base1, int length1, int base2, int length2) {
+			System.arraycopy(a, base1, tmp, 0, length1);
+			int cursor1 = 0, cursor2 = base2, dest = base1;
+			a[dest++] = a[cursor2++];
+			if (--length2 == 0) {
+				System.arraycopy(tmp, cursor1, a, dest, length1);
+				return;
+			}
+			if (length1 == 1) {
+				System.arraycopy(a, cursor2, a, dest, length2);
+				a[dest + length2] = tmp[cursor1];
+				return;
+			}
+
+			int minGallop = this.minGallop;
+			outer:
+			while (true) {
+				int wins1 = 0, wins2 = 0;	//consecutive wins of a run
+				do {
+					if (a[cursor2] < tmp[cursor1]) {
+						a[dest++] = a[cursor2++];
+						wins2++;
+						wins1 = 0;
+						if (--length2 == 0) break outer;
+					}
+					else {
+						a[dest++] = tmp[cursor1++];
+						wins1++;
+						wins2 = 0;
+						if (--length1 == 1) break outer;
+					}
+				} while ((wins1 | wins2) < minGallop);
+
+				//galloping: copy whole stretches while they stay long
+				do {
+					wins1 = gallopRight(a[cursor2], tmp, cursor1, length1, 0);
+					if (wins1 != 0) {
+						System.arraycopy(tmp, cursor1, a, dest, wins1);
+						dest += wins1;
+						cursor1 += wins1;
+						length1 -= wins1;
+						if (length1 <= 1) break outer;
+					}
+					a[dest++] = a[cursor2++];
+					if (--length2 == 0) break outer;
+
+					wins2 = gallopLeft(tmp[cursor1], a, cursor2, length2, 0);
+					if (wins2 != 0) {
+						System.arraycopy(a, cursor2, a, dest, wins2);
+						dest += wins2;
+						cursor2 += wins2;
+						length2 -= wins2;
+						if (length2 == 0) break outer;
+					}
+					a[dest++] = tmp[cursor1++];
+					if (--length1 == 1) break outer;
+					minGallop--;
+				} while (wins1 >= MIN_GALLOP || wins2 >= MIN_GALLOP);
+				if (minGallop < 0) minGallop = 0;
+				minGallop += 2;	//penalty for leaving the galloping mode
+			}
+			this.minGallop = Math.max(minGallop, 1);
+
+			if (length1 == 1) {
+				System.arraycopy(a, cursor2, a, dest, length2);
+				a[dest + length2] = tmp[cursor1];
+			}
+			else {
+				System.arraycopy(tmp, cursor1, a, dest, length1);
+			}
+		}
+
+		/**
+		 * Merges from the right with run 2 (the shorter one) copied to tmp, mirrors {@link #mergeLow(int, int, int, int)}.
+		 */
+		private void mergeHigh(int base1, int length1, int base2, int length2) {
+			System.arraycopy(a, base2, tmp, 0, length2);
+			int cursor1 = base1 + length1 - 1, cursor2 = length2 - 1, dest = base2 + length2 - 1;
+			a[dest--] = a[cursor1--];
+			if (--length1 == 0) {
+				System.arraycopy(tmp, 0, a, dest - (length2 - 1), length2);
+				return;
+			}
+			if (length2 == 1) {
+				dest -= length1;
+				cursor1 -= length1;
+				System.arraycopy(a, cursor1 + 1, a, dest + 1, length1);
+				a[dest] = tmp[cursor2];
+				return;
+			}
+
+			int minGallop = this.minGallop;
+			outer:
+			while (true) {
+				int wins1 = 0, wins2 = 0;
+				do {
+					if (tmp[cursor2] < a[cursor1]) {
+						a[dest--] = a[cursor1--];
+						wins1++;
+						wins2 = 0;
+						if (--length1 == 0) break outer;
+					}
+					else {
+						a[dest--] = tmp[cursor2--];
+						wins2++;
+						wins1 = 0;
+						if (--length2 == 1) break outer;
+					}
+				} while ((wins1 | wins2) < minGallop);
+
+				do {
+					wins1 = length1 - gallopRight(tmp[cursor2], a, base1, length1, length1 - 1);
+					if (wins1 != 0) {
+						dest -= wins1;
+						cursor1 -= wins1;
+						length1 -= wins1;
+						System.arraycopy(a, cursor1 + 1, a, dest + 1, wins1);
+						if (length1 == 0) break outer;
+					}
+					a[dest--] = tmp[cursor2--];
+					if (--length2 == 1) break outer;
+
+					wins2 = length2 - gallopLeft(a[cursor1], tmp, 0, length2, length2 - 1);
+					if (wins2 != 0) {
+						dest -= wins2;
+						cursor2 -= wins2;
+						length2 -= wins2;
+						System.arraycopy(tmp, cursor2 + 1, a, dest + 1, wins2);
+						if (length2 <= 1) break outer;
+					}
+					a[dest--] = a[cursor1--];
+					if (--length1 == 0) break outer;
+					minGallop--;
+				} while (wins1 >= MIN_GALLOP || wins2 >= MIN_GALLOP);
+				if (minGallop < 0) minGallop = 0;
+				minGallop += 2;
+			}
+			this.minGallop = Math.max(minGallop, 1);
+
+			if (length2 == 1) {
+				dest -= length1;
+				cursor1 -= length1;
+				System.arraycopy(a, cursor1 + 1, a, dest + 1, length1);
+				a[dest] = tmp[cursor2];
+			}
+			else {
+				System.arraycopy(tmp, 0, a, dest - (length2 - 1), length2);
+			}
+		}
+
+	}
+
+	public static void main(String[] args) {
+		int arr[] = {9,5,3,5,1,2,20};
+		AdaptiveMergeSort sorter = new AdaptiveMergeSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		for (InputDistribution distribution : InputDistribution.values()) {
+			int[] large = distribution.generate(10000000, 42);
+			int[] expected = large.clone();
+			Arrays.sort(expected);
+			long start = System.nanoTime();
+			sorter.sort(large);
+			System.out.printf("Sorted %d %s ints in %.1fms, correct: %b%n", large.length, distribution,
+					(System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+		}
+	}
+
+}
@@ -1,10 +1,17 @@
 package sorting;
 
 import java.util.Arrays;
-import java.util.Random;
 
+/**
+ * Runs all sorters on generated arrays, meant to be profiled with the agent.
+ * For timings of the sorters use the {@link BenchmarkMatrix} or, for reproducible ones,
+ * the JMH benchmark in the jmh source folder (sorting.SorterBenchmark).
+ */
 public class Benchmark {
 	
+	/** The quadratic CubeSort is skipped for larger arrays, use the AdaptiveMergeSort for (nearly) sorted ones. */
+	static final int CUBESORT_MAX_SIZE = Load.MEDIUM.load;
+	
 	/**
 	 * Defines the Load (aka array size) of a benchmark.
 	 */
@@ -25,21 +32,19 @@ public class Benchmark {
 	 * [0] = Load (name of enum value)					<br>
 	 * [1] = Number of arrays to generate & benchmark	<br>
 	 * [2] = Benchmarking repetitions of each array		<br>
+	 * [3] = InputDistribution (optional, default: RANDOM)	<br>
 	 */
 	public static void main(String[] args) {
-		if (args.length != 3) return;
+		if (args.length != 3 && args.length != 4) return;
 		Benchmark bm = new Benchmark();
 		
 		int arrayLoad = Load.valueOf(args[0]).load;
 		int nrArrays = Integer.parseInt(args[1]);
 		int repetitions = Integer.parseInt(args[2]);
+		InputDistribution distribution = args.length > 3 ? InputDistribution.valueOf(args[3]) : InputDistribution.RANDOM;
 		
 		for (int curArray = 0; curArray < nrArrays; curArray++) {
-			int[] arr = new int[arrayLoad];
-			Random r = new Random(curArray * 123);	//rng seed
-			for (int i = 0; i < arrayLoad; i++) {
-				arr[i] = r.nextInt();
-			}
+			int[] arr = distribution.generate(arrayLoad, curArray * 123);	//rng seed
 			bm.bechmarkSorters(arr, repetitions);
 		}
 	}
@@ -48,6 +53,11 @@ public class Benchmark {
 		QuickSort quickSorter = new QuickSort();
 		BottomUpMergeSort mergeSorter = new BottomUpMergeSort();
 		CubeSort cubeSorter = new CubeSort();
+		ParallelMergeSort parallelMergeSorter = new ParallelMergeSort();
+		RadixSort radixSorter = new RadixSort();
+		ParallelRadixSort parallelRadixSorter = new ParallelRadixSort();
+		DualPivotIntroSort introSorter = new DualPivotIntroSort();
+		AdaptiveMergeSort adaptiveMergeSorter = new AdaptiveMergeSort();
 		
 		int[] sortedArr = array.clone();
 		Arrays.sort(sortedArr);
@@ -55,7 +65,12 @@ public class Benchmark {
 		for (int i = 0; i < repetitions; i++) {			
 			benchmarkQuickSort(quickSorter, array.clone(), sortedArr);
 			benchmarkMergeSort(mergeSorter, array.clone(), sortedArr);
-			benchmarkCubeSort(cubeSorter, array.clone(), sortedArr);
+			if (array.length <= CUBESORT_MAX_SIZE) benchmarkCubeSort(cubeSorter, array.clone(), sortedArr);
+			benchmarkParallelMergeSort(parallelMergeSorter, array.clone(), sortedArr);
+			benchmarkRadixSort(radixSorter, array.clone(), sortedArr);
+			benchmarkParallelRadixSort(parallelRadixSorter, array.clone(), sortedArr);
+			benchmarkIntroSort(introSorter, array.clone(), sortedArr);
+			benchmarkAdaptiveMergeSort(adaptiveMergeSorter, array.clone(), sortedArr);
 		}
 	}
 	
@@ -74,4 +89,29 @@ public class Benchmark {
 		assert Arrays.equals(array, sortedArr);
 	}
 	
+	private void benchmarkParallelMergeSort(ParallelMergeSort sorter, int[] array, int[] sortedArr) {
+		sorter.sort(array);
+		assert Arrays.equals(array, sortedArr);
+	}
+	
+	private void benchmarkRadixSort(RadixSort sorter, int[] array, int[] sortedArr) {
+		sorter.sort(array);
+		assert Arrays.equals(array, sortedArr);
+	}
+	
+	private void benchmarkParallelRadixSort(ParallelRadixSort sorter, int[] array, int[] sortedArr) {
+		sorter.sort(array);
+		assert Arrays.equals(array, sortedArr);
+	}
+	
+	private void benchmarkIntroSort(DualPivotIntroSort sorter, int[] array, int[] sortedArr) {
+		sorter.sort(array);
+		assert Arrays.equals(array, sortedArr);
+	}
+	
+	private void benchmarkAdaptiveMergeSort(AdaptiveMergeSort sorter, int[] array, int[] sortedArr) {
+		sorter.sort(array);
+		assert Arrays.equals(array, sortedArr);
+	}
+	
 }
@@ -0,0 +1,161 @@
+package sorting;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import sorting.Benchmark.Load;
+
+/**
+ * Times every sorter on every {@link InputDistribution} and {@link Load} and writes one row per combination
+ * (min, median and mean time of the repetitions) to a CSV and a JSON file.<br>
+ * Every combination sorts copies of the same input and is warmed up with {@value #WARMUP_RUNS} unmeasured runs first,
+ * which makes the matrix a quick overview, for reproducible numbers use the JMH benchmark (sorting.SorterBenchmark).<br>
+ * The quadratic CubeSort is skipped for loads above MEDIUM. A sorter that fails (e.g. overflows the stack)
+ * is listed with its error instead of the times.
+ */
+public class BenchmarkMatrix {
+
+	private static final String[] SORTERS = {"QuickSort", "BottomUpMergeSort", "CubeSort", "ParallelMergeSort",
+			"RadixSort", "ParallelRadixSort", "DualPivotIntroSort", "AdaptiveMergeSort"};
+	private static final int WARMUP_RUNS = 2;
+	private static final long SEED = 42;
+
+	/**
+	 * Args (all optional, "all" selects all values):<br>
+	 * [0] = Loads, comma separated (names of enum values)						<br>
+	 * [1] = Input distributions, comma separated (names of enum values)		<br>
+	 * [2] = Sorters, comma separated (simple class names)						<br>
+	 * [3] = Measured repetitions of each combination (default: 5)			<br>
+	 * [4] = Prefix of the result files (default: "sorting-matrix")			<br>
+	 */
+	public static void main(String[] args) throws ReflectiveOperationException {
+		String[] loads = select(args, 0, Arrays.stream(Load.values()).map(Load::name).toArray(String[]::new));
+		String[] distributions = select(args, 1, Arrays.stream(InputDistribution.values()).map(InputDistribution::name).toArray(String[]::new));
+		String[] sorters = select(args, 2, SORTERS);
+		int repetitions = args.length > 3 ? Math.max(1, Integer.parseInt(args[3])) : 5;
+		String resultPrefix = args.length > 4 ? args[4] : "sorting-matrix";
+
+		List<Result> results = new ArrayList<>();
+		for (String load : loads) {
+			int size = Load.valueOf(load).load;
+			for (String distribution : distributions) {
+				int[] input = InputDistribution.valueOf(distribution).generate(size, SEED);
+				int[] expected = input.clone();
+				Arrays.sort(expected);
+				for (String sorterName : sorters) {
+					Sorter sorter = (Sorter) Class.forName("sorting." + sorterName).getDeclaredConstructor().newInstance();
+					if (sorter instanceof CubeSort && size > Benchmark.CUBESORT_MAX_SIZE) continue;
+					Result result;
+					try {
+						result = new Result(sorterName, distribution, load, size, measure(sorter, input, expected, repetitions), null);
+					} catch (StackOverflowError | IllegalStateException e) {	//e.g. the recursive QuickSort on organ pipes
+						result = new Result(sorterName, distribution, load, size, new double[] {Double.NaN}, e.toString());
+					}
+					System.out.println(result.toCSV());
+					results.add(result);
+				}
+			}
+		}
+		writeResults(results, resultPrefix);
+	}
+
+	private static String[] select(String[] args, int index, String[] all) {
+		if (args.length <= index || args[index].equalsIgnoreCase("all")) return all;
+		return args[index].split(",");
+	}
+
+	/**
+	 * @return the wall time of every measured repetition in milliseconds
+	 */
+	private static double[] measure(Sorter sorter, int[] input, int[] expected, int repetitions) {
+		int[] array = new int[input.length];
+		double[] millis = new double[repetitions];
+		for (int run = -WARMUP_RUNS; run < repetitions; run++) {
+			System.arraycopy(input, 0, array, 0, input.length);
+			long start = System.nanoTime();
+			sorter.sort(array);
+			long time = System.nanoTime() - start;
+			if (!Arrays.equals(array, expected)) {
+				throw new IllegalStateException(sorter.getClass().getSimpleName() + " did not sort the array");
+			}
+			if (run >= 0) millis[run] = time / 1e6;
+		}
+		return millis;
+	}
+
+	private static void writeResults(List<Result> results, String resultPrefix) {
+		List<String> csv = new ArrayList<>();
+		csv.add(Result.CSV_HEADER);
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < results.size(); i++) {
+			csv.add(results.get(i).toCSV());
+			json.append(i > 0 ? ",\n" : "\n").append(results.get(i).toJSON());
+		}
+		json.append("\n]\n");
+		try {
+			Files.write(Paths.get(resultPrefix + ".csv"), csv, StandardCharsets.UTF_8);
+			Files.write(Paths.get(resultPrefix + ".json"), json.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static class Result {
+
+		static final String CSV_HEADER = "sorter,distribution,load,size,repetitions,minMillis,medianMillis,meanMillis,medianMIntsPerSecond,error";
+
+		final String sorter, distribution, load;
+		final int size;
+		final double min, median, mean;
+		final int repetitions;
+		final String error;
+
+		/**
+		 * @param error - null if the sorter sorted the array
+		 */
+		Result(String sorter, String distribution, String load, int size, double[] millis, String error) {
+			this.sorter = sorter;
+			this.distribution = distribution;
+			this.load = load;
+			this.size = size;
+			this.repetitions = millis.length;
+			double[] sorted = millis.clone();
+			Arrays.sort(sorted);
+			this.min = sorted[0];
+			this.median = sorted.length % 2 == 1 ? sorted[sorted.length / 2]
+					: (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+			this.mean = Arrays.stream(millis).average().getAsDouble();
+			this.error = error;
+		}
+
+		double getMedianMIntsPerSecond() {
+			return size / (median * 1e3);
+		}
+
+		String toCSV() {
+			if (error != null) {
+				return String.format(Locale.ROOT, "%s,%s,%s,%d,0,,,,,\"%s\"", sorter, distribution, load, size, error.replace("\"", "\"\""));
+			}
+			return String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%.4f,%.4f,%.4f,%.2f,", sorter, distribution, load, size, repetitions,
+					min, median, mean, getMedianMIntsPerSecond());
+		}
+
+		String toJSON() {
+			String prefix = String.format("{\"sorter\":\"%s\",\"distribution\":\"%s\",\"load\":\"%s\",\"size\":%d,",
+					sorter, distribution, load, size);
+			if (error != null) {
+				return prefix + "\"error\":\"" + error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+			}
+			return prefix + String.format(Locale.ROOT, "\"repetitions\":%d,\"minMillis\":%.4f,\"medianMillis\":%.4f,"
+					+ "\"meanMillis\":%.4f,\"medianMIntsPerSecond\":%.2f}", repetitions, min, median, mean, getMedianMIntsPerSecond());
+		}
+
+	}
+
+}
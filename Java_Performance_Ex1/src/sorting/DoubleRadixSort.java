@@ -0,0 +1,77 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Sorts doubles in the order of {@link Double#compare(double, double)} (like {@link Arrays#sort(double[])}):
+ * -Infinity &lt; negative numbers &lt; -0.0 &lt; 0.0 &lt; positive numbers &lt; Infinity &lt; NaN.<br>
+ * The NaNs are moved to the end unchanged. The other doubles are mapped to longs in the same order
+ * (see {@link #toSortableBits(double)}) and sorted with the {@link LongRadixSort}.
+ */
+public class DoubleRadixSort implements DoubleSorter {
+
+	private final LongRadixSort longSorter = new LongRadixSort();
+	private final ThreadLocal<long[]> keyBuffers = new ThreadLocal<>();
+
+	@Override
+	public void sort(double[] input) {
+		//move the NaNs to the end, keeping the order of the other doubles
+		int length = 0;
+		for (int i = 0; i < input.length; i++) {
+			double value = input[i];
+			if (value != value) continue;	//NaN
+			if (i != length) {
+				input[i] = input[length];	//a NaN
+				input[length] = value;
+			}
+			length++;
+		}
+
+		long[] keys = keyBuffers.get();
+		if (keys == null || keys.length < length) {
+			keys = new long[length];
+			keyBuffers.set(keys);
+		}
+		for (int i = 0; i < length; i++) {
+			keys[i] = toSortableBits(input[i]);
+		}
+		longSorter.sort(keys, length, null);
+		for (int i = 0; i < length; i++) {
+			input[i] = fromSortableBits(keys[i]);
+		}
+	}
+
+	/**
+	 * Maps a double to a long with the same order as {@link Double#compare(double, double)}:
+	 * positive doubles keep their bits, negative ones get all bits but the sign flipped, so larger magnitudes become smaller longs.
+	 * All NaNs are mapped to the same long above Infinity.
+	 */
+	static long toSortableBits(double value) {
+		long bits = Double.doubleToLongBits(value);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	/**
+	 * Inverse of {@link #toSortableBits(double)}.
+	 */
+	static double fromSortableBits(long sortableBits) {
+		return Double.longBitsToDouble(sortableBits ^ ((sortableBits >> 63) & Long.MAX_VALUE));
+	}
+
+	public static void main(String[] args) {
+		double arr[] = {9.5, -0.0, Double.NaN, 0.0, -5, Double.NEGATIVE_INFINITY, 1e-300, -1e-300, Double.POSITIVE_INFINITY, 0.0, -0.0};
+		DoubleRadixSort sorter = new DoubleRadixSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		double[] scores = new Random(42).doubles(10000000).map(score -> score * 200 - 100).toArray();
+		double[] expected = scores.clone();
+		Arrays.sort(expected);
+		long start = System.nanoTime();
+		sorter.sort(scores);
+		System.out.printf("Sorted %d scores in %.1fms, correct: %b%n", scores.length,
+				(System.nanoTime() - start) / 1e6, Arrays.equals(scores, expected));
+	}
+
+}
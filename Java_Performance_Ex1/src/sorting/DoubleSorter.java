@@ -0,0 +1,7 @@
+package sorting;
+
+public interface DoubleSorter {
+
+	public void sort(double[] input);
+	
+}
@@ -0,0 +1,162 @@
+package sorting;
+
+import java.util.Arrays;
+
+/**
+ * Introspective dual-pivot quicksort, a replacement for {@link QuickSort}.<br>
+ * The two pivots are the 2nd and 4th of five evenly spaced elements, the range is partitioned into
+ * (&lt; pivot1), (between the pivots) and (&gt; pivot2). The two smaller parts are sorted recursively and the largest
+ * one in the loop, so the recursion depth stays logarithmic. Ranges up to {@value #INSERTION_SORT_CUTOFF} ints are
+ * sorted with insertion sort, and ranges that are still unsorted after 2*log2(n) partitioning steps with heap sort,
+ * so adversarial inputs stay O(n log n).<br>
+ * The sorter has no state, one instance can be used by several threads at once.
+ */
+public class DualPivotIntroSort implements Sorter {
+
+	private static final int INSERTION_SORT_CUTOFF = 32;
+
+	@Override
+	public void sort(int[] input) {
+		if (input.length < 2) return;
+		int depthLimit = 2 * (31 - Integer.numberOfLeadingZeros(input.length));
+		sort(input, 0, input.length, depthLimit);
+	}
+
+	/**
+	 * Sorts a[lo, hi).
+	 * @param depthLimit - partitioning steps left before falling back to heap sort
+	 */
+	private static void sort(int[] a, int lo, int hi, int depthLimit) {
+		while (hi - lo > INSERTION_SORT_CUTOFF) {
+			if (depthLimit-- == 0) {
+				heapSort(a, lo, hi);
+				return;
+			}
+			choosePivots(a, lo, hi);
+			int pivot1 = a[lo], pivot2 = a[hi - 1];
+
+			//a[lo+1, lt) < pivot1, a[lt, k) between the pivots, a(gt, hi-1) > pivot2, a[k, gt] not yet partitioned
+			int lt = lo + 1, gt = hi - 2;
+			for (int k = lt; k <= gt; k++) {
+				int value = a[k];
+				if (value < pivot1) {
+					swap(a, k, lt++);
+				}
+				else if (value > pivot2) {
+					while (a[gt] > pivot2 && k < gt) gt--;
+					swap(a, k, gt--);
+					if (a[k] < pivot1) swap(a, k, lt++);
+				}
+			}
+			lt--;
+			gt++;
+			swap(a, lo, lt);
+			swap(a, hi - 1, gt);
+
+			//parts: [lo, lt), [lt + 1, gt), [gt + 1, hi), pivots at lt and gt
+			int leftLength = lt - lo, middleLength = gt - lt - 1, rightLength = hi - gt - 1;
+			if (pivot1 == pivot2) middleLength = 0;	//only ints equal to the pivots
+			if (leftLength >= middleLength && leftLength >= rightLength) {
+				if (middleLength > 0) sort(a, lt + 1, gt, depthLimit);
+				sort(a, gt + 1, hi, depthLimit);
+				hi = lt;
+			}
+			else if (middleLength >= rightLength) {
+				sort(a, lo, lt, depthLimit);
+				sort(a, gt + 1, hi, depthLimit);
+				lo = lt + 1;
+				hi = gt;
+			}
+			else {
+				sort(a, lo, lt, depthLimit);
+				if (middleLength > 0) sort(a, lt + 1, gt, depthLimit);
+				lo = gt + 1;
+			}
+		}
+		insertionSort(a, lo, hi);
+	}
+
+	/**
+	 * Sorts five evenly spaced elements of a[lo, hi) and moves the 2nd to lo and the 4th to hi - 1.
+	 */
+	private static void choosePivots(int[] a, int lo, int hi) {
+		int length = hi - lo;
+		int seventh = (length >> 3) + (length >> 6) + 1;
+		int e3 = (lo + hi) >>> 1;
+		int e2 = e3 - seventh, e1 = e2 - seventh, e4 = e3 + seventh, e5 = e4 + seventh;
+		int[] samples = {e1, e2, e3, e4, e5};
+		for (int i = 1; i < samples.length; i++) {
+			int value = a[samples[i]];
+			int j = i - 1;
+			while (j >= 0 && a[samples[j]] > value) {
+				a[samples[j + 1]] = a[samples[j]];
+				j--;
+			}
+			a[samples[j + 1]] = value;
+		}
+		swap(a, lo, e2);
+		swap(a, hi - 1, e4);
+	}
+
+	private static void insertionSort(int[] a, int lo, int hi) {
+		for (int i = lo + 1; i < hi; i++) {
+			int value = a[i];
+			int j = i - 1;
+			while (j >= lo && a[j] > value) {
+				a[j + 1] = a[j];
+				j--;
+			}
+			a[j + 1] = value;
+		}
+	}
+
+	private static void heapSort(int[] a, int lo, int hi) {
+		int length = hi - lo;
+		for (int i = length / 2 - 1; i >= 0; i--) {
+			siftDown(a, lo, i, length);
+		}
+		for (int end = length - 1; end > 0; end--) {
+			swap(a, lo, lo + end);
+			siftDown(a, lo, 0, end);
+		}
+	}
+
+	/**
+	 * Restores the max-heap a[lo, lo + length) below the node i (relative to lo).
+	 */
+	private static void siftDown(int[] a, int lo, int i, int length) {
+		int value = a[lo + i];
+		int child;
+		while ((child = 2 * i + 1) < length) {
+			if (child + 1 < length && a[lo + child + 1] > a[lo + child]) child++;
+			if (a[lo + child] <= value) break;
+			a[lo + i] = a[lo + child];
+			i = child;
+		}
+		a[lo + i] = value;
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+	}
+
+	public static void main(String[] args) {
+		int arr[] = {9,5,3,5,1,2,20};
+		DualPivotIntroSort sorter = new DualPivotIntroSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		for (InputDistribution distribution : InputDistribution.values()) {
+			int[] large = distribution.generate(10000000, 42);
+			int[] expected = large.clone();
+			Arrays.sort(expected);
+			long start = System.nanoTime();
+			sorter.sort(large);
+			System.out.printf("Sorted %d %s ints in %.1fms, correct: %b%n", large.length, distribution,
+					(System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+		}
+	}
+
+}
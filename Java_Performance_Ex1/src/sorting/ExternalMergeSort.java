@@ -0,0 +1,394 @@
+package sorting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts a binary file of ints (big endian, like {@link java.io.DataOutputStream}) that does not fit into the heap.<br>
+ * 1. Runs: the file is cut into runs of {@link #runLength} ints, which are read through a memory mapping,
+ * sorted with a {@link Sorter} and written to temp files. The runs are sorted in parallel by {@link #threads} threads,
+ * so the heap has to hold threads * runLength ints plus the scratch buffer of the sorter (another run for {@link RadixSort}).
+ * The threads are therefore capped at maxMemory / (2 * runLength * 4 bytes), and a run gets at most half of the heap.<br>
+ * 2. Merge: the runs are merged with a loser tree, every run and the output are read / written
+ * through a direct buffer of {@value #MERGE_BUFFER_BYTES} bytes. At most {@value #MAX_MERGE_RUNS} runs are merged at once,
+ * more runs are first merged in groups into longer runs (one more pass over the data per level),
+ * so the direct memory stays below {@value #MAX_MERGE_RUNS} + 1 buffers.<br>
+ * The sorter has to be usable by several threads at once if threads &gt; 1 (e.g. {@link RadixSort}, not {@link QuickSort}).
+ */
+public class ExternalMergeSort {
+
+	private static final int MERGE_BUFFER_BYTES = 1 << 20;
+	private static final int MAX_MERGE_RUNS = 64;
+	private static final double BYTES_PER_MB = 1 << 20;
+
+	private final Sorter runSorter;
+	private final int runLength;
+	private final int threads;
+	private final Path tempDirectory;
+	private final ThreadLocal<int[]> runBuffers = new ThreadLocal<>();
+
+	public ExternalMergeSort() {
+		this(new RadixSort(), 1 << 24, Runtime.getRuntime().availableProcessors(), Paths.get(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * @param runLength - ints per run, reduced to a quarter of the heap (a run and the sorter's scratch buffer)
+	 * @param threads - runs sorted in parallel, reduced to the runs that fit into the heap at once
+	 * @param tempDirectory - directory of the run files, which are deleted after the merge
+	 */
+	public ExternalMergeSort(Sorter runSorter, int runLength, int threads, Path tempDirectory) {
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		this.runSorter = runSorter;
+		this.runLength = (int) Math.max(1, Math.min(runLength, maxMemory / (4L * Integer.BYTES)));
+		this.threads = (int) Math.max(1, Math.min(threads, maxMemory / (2L * this.runLength * Integer.BYTES)));
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * Sorts the ints of the input file into the output file.
+	 */
+	public Report sort(Path input, Path output) throws IOException {
+		List<Path> tempFiles = new ArrayList<>();
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+			long bytes = in.size();
+			if (bytes % Integer.BYTES != 0) {
+				throw new IllegalArgumentException(input + " does not contain ints, size: " + bytes);
+			}
+			long start = System.nanoTime();
+			List<Path> runs = sortRuns(in, bytes / Integer.BYTES, tempFiles);
+			long runsSorted = System.nanoTime();
+			int initialRuns = runs.size(), mergePasses = 1;
+			for (; runs.size() > MAX_MERGE_RUNS; mergePasses++) {
+				runs = mergeGroups(runs, tempFiles);
+			}
+			merge(runs, output);
+			return new Report(bytes, initialRuns, mergePasses, runsSorted - start, System.nanoTime() - runsSorted);
+		} finally {
+			for (Path tempFile : tempFiles) {
+				Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+
+	// --------- Runs ---------
+
+	/**
+	 * @param tempFiles - the run files are added, to be deleted at the end
+	 * @return the run files in the order of the input
+	 */
+	private List<Path> sortRuns(FileChannel in, long ints, List<Path> tempFiles) throws IOException {
+		List<Path> runs = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> sortedRuns = new ArrayList<>();
+			for (long position = 0; position < ints; position += runLength) {
+				Path run = createRun(tempFiles);
+				runs.add(run);
+				long runStart = position;
+				int length = (int) Math.min(runLength, ints - position);
+				sortedRuns.add(executor.submit(() -> {
+					sortRun(in, runStart, length, run);
+					return null;
+				}));
+			}
+			for (Future<?> sortedRun : sortedRuns) {
+				sortedRun.get();
+			}
+			return runs;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while sorting the runs", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("sorting a run failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sorts the ints [start, start + length) of the input into the run file.
+	 */
+	private void sortRun(FileChannel in, long start, int length, Path run) throws IOException {
+		int[] ints = runBuffers.get();
+		if (ints == null || ints.length != length) {
+			ints = new int[length];
+			runBuffers.set(ints);
+		}
+		MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, start * Integer.BYTES, (long) length * Integer.BYTES);
+		mapped.asIntBuffer().get(ints);
+		runSorter.sort(ints);
+
+		try (IntWriter out = new IntWriter(run)) {
+			out.write(ints);
+		}
+	}
+
+	private Path createRun(List<Path> tempFiles) throws IOException {
+		Path run = Files.createTempFile(tempDirectory, "run", ".bin");
+		tempFiles.add(run);
+		return run;
+	}
+
+	// --------- Merge ---------
+
+	/**
+	 * Merges every {@value #MAX_MERGE_RUNS} consecutive runs into one and deletes them.
+	 * @return the merged runs
+	 */
+	private List<Path> mergeGroups(List<Path> runs, List<Path> tempFiles) throws IOException {
+		List<Path> mergedRuns = new ArrayList<>();
+		for (int i = 0; i < runs.size(); i += MAX_MERGE_RUNS) {
+			List<Path> group = runs.subList(i, Math.min(i + MAX_MERGE_RUNS, runs.size()));
+			Path mergedRun = createRun(tempFiles);
+			merge(group, mergedRun);
+			for (Path run : group) {
+				Files.delete(run);
+				tempFiles.remove(run);
+			}
+			mergedRuns.add(mergedRun);
+		}
+		return mergedRuns;
+	}
+
+	private void merge(List<Path> runs, Path output) throws IOException {
+		List<RunReader> readers = new ArrayList<>();
+		try (IntWriter out = new IntWriter(output)) {
+			for (Path run : runs) {
+				readers.add(new RunReader(run));
+			}
+			LoserTree tree = new LoserTree(readers);
+			for (int run = tree.winner(); run >= 0; run = tree.next()) {
+				out.write(tree.value(run));
+			}
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Tournament tree over the current ints of the runs: every inner node keeps the run that lost the comparison there,
+	 * so after taking the smallest int only the path from its run to the root has to be replayed (log2(k) comparisons).
+	 * Exhausted runs have the key {@link Long#MAX_VALUE}, which is larger than every int.
+	 */
+	private static class LoserTree {
+
+		private static final long EXHAUSTED = Long.MAX_VALUE;
+
+		private final RunReader[] runs;
+		private final long[] keys;
+		private final int[] losers;	//[0] = winner, [1, k) = losers of the inner nodes, run i is the leaf k + i
+		private final int k;
+
+		LoserTree(List<RunReader> runs) throws IOException {
+			this.runs = runs.toArray(new RunReader[0]);
+			this.k = runs.size();
+			this.keys = new long[k];
+			this.losers = new int[Math.max(k, 1)];
+			for (int run = 0; run < k; run++) {
+				keys[run] = this.runs[run].next();
+			}
+			int[] winners = new int[2 * k];
+			for (int run = 0; run < k; run++) {
+				winners[k + run] = run;
+			}
+			for (int node = k - 1; node >= 1; node--) {
+				int left = winners[2 * node], right = winners[2 * node + 1];
+				boolean leftWins = keys[left] <= keys[right];
+				winners[node] = leftWins ? left : right;
+				losers[node] = leftWins ? right : left;
+			}
+			losers[0] = k > 1 ? winners[1] : 0;
+		}
+
+		/**
+		 * @return the run with the smallest int, -1 if all runs are exhausted
+		 */
+		int winner() {
+			return k == 0 || keys[losers[0]] == EXHAUSTED ? -1 : losers[0];
+		}
+
+		int value(int run) {
+			return (int) keys[run];
+		}
+
+		/**
+		 * Advances the winning run to its next int.
+		 * @return the new winner, see {@link #winner()}
+		 */
+		int next() throws IOException {
+			int winner = losers[0];
+			keys[winner] = runs[winner].next();
+			for (int node = (winner + k) >>> 1; node >= 1; node >>>= 1) {
+				if (keys[losers[node]] < keys[winner]) {
+					int loser = winner;
+					winner = losers[node];
+					losers[node] = loser;
+				}
+			}
+			losers[0] = winner;
+			return winner();
+		}
+
+	}
+
+	/**
+	 * Reads the ints of a run through a direct buffer.
+	 */
+	private static class RunReader implements AutoCloseable {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(MERGE_BUFFER_BYTES);
+		private IntBuffer ints = IntBuffer.allocate(0);
+
+		RunReader(Path run) throws IOException {
+			this.channel = FileChannel.open(run, StandardOpenOption.READ);
+		}
+
+		/**
+		 * @return the next int, {@link LoserTree#EXHAUSTED} at the end of the run
+		 */
+		long next() throws IOException {
+			if (!ints.hasRemaining()) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+				buffer.flip();
+				ints = buffer.asIntBuffer();
+				if (!ints.hasRemaining()) return LoserTree.EXHAUSTED;
+			}
+			return ints.get();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	/**
+	 * Writes ints through a direct buffer.
+	 */
+	private static class IntWriter implements AutoCloseable {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(MERGE_BUFFER_BYTES);
+
+		IntWriter(Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void write(int value) throws IOException {
+			if (!buffer.hasRemaining()) flush();
+			buffer.putInt(value);
+		}
+
+		void write(int[] values) throws IOException {
+			for (int offset = 0; offset < values.length; ) {
+				if (!buffer.hasRemaining()) flush();
+				int length = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+				buffer.asIntBuffer().put(values, offset, length);
+				buffer.position(buffer.position() + length * Integer.BYTES);
+				offset += length;
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Size and duration of a sort.
+	 */
+	public static class Report {
+
+		public final long bytes;
+		public final int runs, mergePasses;
+		public final long runNanos, mergeNanos;
+
+		Report(long bytes, int runs, int mergePasses, long runNanos, long mergeNanos) {
+			this.bytes = bytes;
+			this.runs = runs;
+			this.mergePasses = mergePasses;
+			this.runNanos = runNanos;
+			this.mergeNanos = mergeNanos;
+		}
+
+		public double getMBPerSecond() {
+			return throughput(runNanos + mergeNanos);
+		}
+
+		private double throughput(long nanos) {
+			return bytes / BYTES_PER_MB / Math.max(nanos / 1e9, 1e-9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f MB in %d runs: runs %.0fms (%.1f MB/s), merge in %d passes %.0fms (%.1f MB/s), total %.1f MB/s",
+					bytes / BYTES_PER_MB, runs, runNanos / 1e6, throughput(runNanos), mergePasses, mergeNanos / 1e6,
+					throughput(mergeNanos), getMBPerSecond());
+		}
+
+	}
+
+	/**
+	 * Args:<br>
+	 * [0] = Input file, generated with random ints if it does not exist		<br>
+	 * [1] = Output file														<br>
+	 * [2] = Ints of the generated input (default: 2^26, 256 MB)				<br>
+	 * [3] = Ints per run (default: 2^24, capped by the heap)					<br>
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) return;
+		Path input = Paths.get(args[0]), output = Paths.get(args[1]);
+		long size = args.length > 2 ? Long.parseLong(args[2]) : 1 << 26;
+		int runLength = args.length > 3 ? Integer.parseInt(args[3]) : 1 << 24;
+		try {
+			if (!Files.exists(input)) {
+				Random r = new Random(42);
+				try (IntWriter out = new IntWriter(input)) {
+					for (long i = 0; i < size; i++) {
+						out.write(r.nextInt());
+					}
+				}
+			}
+			ExternalMergeSort sorter = new ExternalMergeSort(new RadixSort(), runLength,
+					Runtime.getRuntime().availableProcessors(), output.toAbsolutePath().getParent());
+			System.out.println(sorter.sort(input, output));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates the input arrays of the benchmarks.
+ */
+public enum InputDistribution {
+
+	/** Uniformly distributed random ints. */
+	RANDOM {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] arr = new int[size];
+			Random r = new Random(seed);
+			for (int i = 0; i < size; i++) {
+				arr[i] = r.nextInt();
+			}
+			return arr;
+		}
+	},
+	/** The random ints in ascending order. */
+	SORTED {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] arr = RANDOM.generate(size, seed);
+			Arrays.sort(arr);
+			return arr;
+		}
+	},
+	/** The random ints in descending order. */
+	REVERSED {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] arr = SORTED.generate(size, seed);
+			for (int i = 0, j = size - 1; i < j; i++, j--) {
+				swap(arr, i, j);
+			}
+			return arr;
+		}
+	},
+	/** The sorted ints with size / 100 (at least one) random pairs swapped. */
+	NEARLY_SORTED {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] arr = SORTED.generate(size, seed);
+			if (size < 2) return arr;
+			Random r = new Random(~seed);
+			for (int swaps = Math.max(1, size / 100); swaps > 0; swaps--) {
+				swap(arr, r.nextInt(size), r.nextInt(size));
+			}
+			return arr;
+		}
+	},
+	/** Only 16 distinct random ints. */
+	FEW_UNIQUE {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] values = RANDOM.generate(FEW_UNIQUE_VALUES, ~seed);
+			int[] arr = new int[size];
+			Random r = new Random(seed);
+			for (int i = 0; i < size; i++) {
+				arr[i] = values[r.nextInt(values.length)];
+			}
+			return arr;
+		}
+	},
+	/** 16 consecutive ascending runs of random ints. */
+	SAWTOOTH {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] arr = RANDOM.generate(size, seed);
+			for (int tooth = 0; tooth < SAWTOOTH_TEETH; tooth++) {
+				Arrays.sort(arr, (int) ((long) size * tooth / SAWTOOTH_TEETH), (int) ((long) size * (tooth + 1) / SAWTOOTH_TEETH));
+			}
+			return arr;
+		}
+	},
+	/** Random ints ascending in the first half and descending in the second half. */
+	ORGAN_PIPE {
+		@Override
+		public int[] generate(int size, long seed) {
+			int[] sorted = SORTED.generate(size, seed);
+			int[] arr = new int[size];
+			for (int i = 0; i < size; i++) {
+				if (i % 2 == 0) arr[i / 2] = sorted[i];
+				else arr[size - 1 - i / 2] = sorted[i];
+			}
+			return arr;
+		}
+	};
+
+	private static final int FEW_UNIQUE_VALUES = 16;
+	private static final int SAWTOOTH_TEETH = 16;
+
+	/**
+	 * @param seed - the same seed always generates the same array
+	 */
+	public abstract int[] generate(int size, long seed);
+
+	private static void swap(int[] arr, int i, int j) {
+		int tmp = arr[i];
+		arr[i] = arr[j];
+		arr[j] = tmp;
+	}
+
+}
@@ -0,0 +1,185 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Sorts objects by a primitive key without a Comparator: the keys are extracted once into a long array
+ * and radix sorted together with their index ({@link LongRadixSort}), then the objects are moved by the resulting order.
+ * So the key function is called once per object and the inner loops neither box nor call a comparator.<br>
+ * Sorting a key array with {@link #sort(long[])} / {@link #sort(double[])} returns the order,
+ * which {@link #applyOrder(Object[], int[])} applies to arrays of the other fields of the same records.<br>
+ * All sorts are stable. Double keys are ordered like {@link DoubleRadixSort}.
+ */
+public class KeySort {
+
+	private final LongRadixSort longSorter = new LongRadixSort();
+	private final ThreadLocal<long[]> keyBuffers = new ThreadLocal<>();
+	private final ThreadLocal<int[]> orderBuffers = new ThreadLocal<>();
+
+	public <T> void sortByLong(T[] items, ToLongFunction<? super T> key) {
+		long[] keys = keyBuffer(items.length);
+		for (int i = 0; i < items.length; i++) {
+			keys[i] = key.applyAsLong(items[i]);
+		}
+		sortByKeys(items, keys);
+	}
+
+	public <T> void sortByInt(T[] items, ToIntFunction<? super T> key) {
+		long[] keys = keyBuffer(items.length);
+		for (int i = 0; i < items.length; i++) {
+			keys[i] = key.applyAsInt(items[i]);
+		}
+		sortByKeys(items, keys);
+	}
+
+	public <T> void sortByDouble(T[] items, ToDoubleFunction<? super T> key) {
+		long[] keys = keyBuffer(items.length);
+		for (int i = 0; i < items.length; i++) {
+			keys[i] = DoubleRadixSort.toSortableBits(key.applyAsDouble(items[i]));
+		}
+		sortByKeys(items, keys);
+	}
+
+	private <T> void sortByKeys(T[] items, long[] keys) {
+		int[] order = orderBuffers.get();
+		if (order == null || order.length < items.length) {
+			order = new int[items.length];
+			orderBuffers.set(order);
+		}
+		initOrder(order, items.length);
+		longSorter.sort(keys, items.length, order);
+		applyOrder(items, order);
+	}
+
+	/**
+	 * Sorts the keys.
+	 * @return the order: the key now at index i was at index order[i] before
+	 */
+	public int[] sort(long[] keys) {
+		int[] order = new int[keys.length];
+		initOrder(order, keys.length);
+		longSorter.sort(keys, keys.length, order);
+		return order;
+	}
+
+	/**
+	 * Sorts the keys, NaNs are written back as {@link Double#NaN}.
+	 * @return the order: the key now at index i was at index order[i] before
+	 */
+	public int[] sort(double[] keys) {
+		long[] sortableKeys = keyBuffer(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			sortableKeys[i] = DoubleRadixSort.toSortableBits(keys[i]);
+		}
+		int[] order = new int[keys.length];
+		initOrder(order, keys.length);
+		longSorter.sort(sortableKeys, keys.length, order);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = DoubleRadixSort.fromSortableBits(sortableKeys[i]);
+		}
+		return order;
+	}
+
+	private long[] keyBuffer(int length) {
+		long[] keys = keyBuffers.get();
+		if (keys == null || keys.length < length) {
+			keys = new long[length];
+			keyBuffers.set(keys);
+		}
+		return keys;
+	}
+
+	private static void initOrder(int[] order, int length) {
+		for (int i = 0; i < length; i++) {
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Rearranges the values like the keys the order was returned for, values[i] becomes values[order[i]].
+	 */
+	public static <T> void applyOrder(T[] values, int[] order) {
+		T[] copy = values.clone();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = copy[order[i]];
+		}
+	}
+
+	/**
+	 * See {@link #applyOrder(Object[], int[])}.
+	 */
+	public static void applyOrder(long[] values, int[] order) {
+		long[] copy = values.clone();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = copy[order[i]];
+		}
+	}
+
+	/**
+	 * See {@link #applyOrder(Object[], int[])}.
+	 */
+	public static void applyOrder(double[] values, int[] order) {
+		double[] copy = values.clone();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = copy[order[i]];
+		}
+	}
+
+	/**
+	 * See {@link #applyOrder(Object[], int[])}.
+	 */
+	public static void applyOrder(int[] values, int[] order) {
+		int[] copy = values.clone();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = copy[order[i]];
+		}
+	}
+
+	private static class Record {
+
+		final long timestamp;
+		final double score;
+
+		Record(long timestamp, double score) {
+			this.timestamp = timestamp;
+			this.score = score;
+		}
+
+		@Override
+		public String toString() {
+			return timestamp + ":" + score;
+		}
+
+	}
+
+	public static void main(String[] args) {
+		KeySort sorter = new KeySort();
+		Record[] records = {new Record(30, 0.5), new Record(10, -1), new Record(20, 0.5), new Record(10, Double.NaN)};
+		sorter.sortByLong(records, record -> record.timestamp);
+		System.out.println(Arrays.toString(records));
+		sorter.sortByDouble(records, record -> record.score);
+		System.out.println(Arrays.toString(records));
+
+		long[] timestamps = {30, 10, 20, 10};
+		double[] scores = {0.5, -1, 0.5, Double.NaN};
+		KeySort.applyOrder(scores, sorter.sort(timestamps));
+		System.out.println(Arrays.toString(timestamps) + " " + Arrays.toString(scores));
+
+		Random r = new Random(42);
+		Record[] large = new Record[5000000];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = new Record(r.nextLong(), r.nextDouble());
+		}
+		Record[] expected = large.clone();
+		Arrays.sort(expected, (a, b) -> Double.compare(a.score, b.score));
+		long start = System.nanoTime();
+		sorter.sortByDouble(large, record -> record.score);
+		System.out.printf("Sorted %d records by score in %.1fms, correct: %b%n", large.length,
+				(System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+	}
+
+}
@@ -0,0 +1,125 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link RadixSort} for longs, eight passes of one byte each.<br>
+ * Bytes in which all longs are equal are skipped, so e.g. timestamps of a few days only need the passes over their low bytes.<br>
+ * The core can move an int per long along with it ({@link #sort(long[], int, int[])}), which {@link DoubleRadixSort}
+ * and {@link KeySort} use to sort keys together with their index. The sort is stable.
+ */
+public class LongRadixSort implements LongSorter {
+
+	private static final int PASSES = Long.SIZE / RadixSort.RADIX_BITS;
+	private static final int INSERTION_SORT_CUTOFF = 64;
+
+	private final ThreadLocal<long[]> scratchBuffers = new ThreadLocal<>();
+	private final ThreadLocal<int[]> indexScratchBuffers = new ThreadLocal<>();
+
+	@Override
+	public void sort(long[] input) {
+		sort(input, input.length, null);
+	}
+
+	/**
+	 * Sorts keys[0, length) and moves indices[i] whenever keys[i] is moved.
+	 * @param indices - null or an array with at least length ints
+	 */
+	public void sort(long[] keys, int length, int[] indices) {
+		if (length <= INSERTION_SORT_CUTOFF) {
+			insertionSort(keys, length, indices);
+			return;
+		}
+		int[][] counts = new int[PASSES][RadixSort.RADIX];
+		for (int i = 0; i < length; i++) {
+			long key = keys[i] ^ Long.MIN_VALUE;
+			for (int pass = 0; pass < PASSES; pass++) {
+				counts[pass][(int) (key >>> (pass * RadixSort.RADIX_BITS)) & (RadixSort.RADIX - 1)]++;
+			}
+		}
+
+		long[] src = keys, dst = keyScratch(length);
+		int[] srcIndices = indices, dstIndices = indices == null ? null : indexScratch(length);
+		for (int pass = 0; pass < PASSES; pass++) {
+			int[] offsets = counts[pass];
+			if (RadixSort.isSingleDigit(offsets, length)) continue;
+			RadixSort.toOffsets(offsets);
+			int shift = pass * RadixSort.RADIX_BITS;
+			if (srcIndices == null) {
+				for (int i = 0; i < length; i++) {
+					long key = src[i];
+					dst[offsets[(int) ((key ^ Long.MIN_VALUE) >>> shift) & (RadixSort.RADIX - 1)]++] = key;
+				}
+			}
+			else {
+				for (int i = 0; i < length; i++) {
+					long key = src[i];
+					int position = offsets[(int) ((key ^ Long.MIN_VALUE) >>> shift) & (RadixSort.RADIX - 1)]++;
+					dst[position] = key;
+					dstIndices[position] = srcIndices[i];
+				}
+				int[] tmpIndices = srcIndices;
+				srcIndices = dstIndices;
+				dstIndices = tmpIndices;
+			}
+			long[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+		if (src != keys) {
+			System.arraycopy(src, 0, keys, 0, length);
+			if (indices != null) System.arraycopy(srcIndices, 0, indices, 0, length);
+		}
+	}
+
+	private long[] keyScratch(int length) {
+		long[] scratch = scratchBuffers.get();
+		if (scratch == null || scratch.length < length) {
+			scratch = new long[length];
+			scratchBuffers.set(scratch);
+		}
+		return scratch;
+	}
+
+	private int[] indexScratch(int length) {
+		int[] scratch = indexScratchBuffers.get();
+		if (scratch == null || scratch.length < length) {
+			scratch = new int[length];
+			indexScratchBuffers.set(scratch);
+		}
+		return scratch;
+	}
+
+	private static void insertionSort(long[] keys, int length, int[] indices) {
+		for (int i = 1; i < length; i++) {
+			long key = keys[i];
+			int index = indices == null ? 0 : indices[i];
+			int j = i - 1;
+			while (j >= 0 && keys[j] > key) {
+				keys[j + 1] = keys[j];
+				if (indices != null) indices[j + 1] = indices[j];
+				j--;
+			}
+			keys[j + 1] = key;
+			if (indices != null) indices[j + 1] = index;
+		}
+	}
+
+	public static void main(String[] args) {
+		long arr[] = {9,-5,3,5,Long.MIN_VALUE,1,-2,20,Long.MAX_VALUE};
+		LongRadixSort sorter = new LongRadixSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		//timestamps in nanoseconds over one day
+		long[] timestamps = new Random(42).longs(10000000, 1500000000000000000L, 1500000000000000000L + 86400000000000L).toArray();
+		long[] expected = timestamps.clone();
+		Arrays.sort(expected);
+		long start = System.nanoTime();
+		sorter.sort(timestamps);
+		System.out.printf("Sorted %d timestamps in %.1fms, correct: %b%n", timestamps.length,
+				(System.nanoTime() - start) / 1e6, Arrays.equals(timestamps, expected));
+	}
+
+}
@@ -0,0 +1,7 @@
+package sorting;
+
+public interface LongSorter {
+
+	public void sort(long[] input);
+	
+}
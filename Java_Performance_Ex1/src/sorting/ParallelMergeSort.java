@@ -0,0 +1,195 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merge sort that sorts the halves and merges them in parallel in a {@link ForkJoinPool}.<br>
+ * Small ranges are sorted with insertion sort. The merge of two large runs is split at the middle
+ * of the longer run and the matching position in the other run (binary search), so both halves can be merged in parallel.<br>
+ * The runs alternate between the array and a scratch buffer of the same size, so no run is copied back.
+ * The scratch buffer is either passed by the caller or kept per calling thread and reused by later calls.
+ */
+public class ParallelMergeSort implements Sorter {
+
+	private static final int INSERTION_SORT_CUTOFF = 32;
+	private static final int SEQUENTIAL_CUTOFF = 1 << 13;	//ranges below are sorted / merged by a single task
+
+	private final ForkJoinPool pool;
+	private final ThreadLocal<int[]> scratchBuffers = new ThreadLocal<>();
+
+	public ParallelMergeSort() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelMergeSort(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void sort(int[] input) {
+		int[] scratch = scratchBuffers.get();
+		if (scratch == null || scratch.length < input.length) {
+			scratch = new int[input.length];
+			scratchBuffers.set(scratch);
+		}
+		sort(input, scratch);
+	}
+
+	/**
+	 * @param scratch - buffer with at least the length of input, its content is overwritten
+	 */
+	public void sort(int[] input, int[] scratch) {
+		if (scratch.length < input.length) {
+			throw new IllegalArgumentException("scratch buffer is shorter than the input: " + scratch.length + " < " + input.length);
+		}
+		if (input.length < 2) return;
+		if (input.length <= SEQUENTIAL_CUTOFF) {
+			sortSequentially(input, scratch, 0, input.length, false);
+		}
+		else {
+			pool.invoke(new SortTask(input, scratch, 0, input.length, false));
+		}
+	}
+
+	/**
+	 * Sorts a[lo, hi) into a (toScratch = false) or into scratch[lo, hi) (toScratch = true).
+	 */
+	private static void sortSequentially(int[] a, int[] scratch, int lo, int hi, boolean toScratch) {
+		if (hi - lo <= INSERTION_SORT_CUTOFF) {
+			insertionSort(a, lo, hi);
+			if (toScratch) System.arraycopy(a, lo, scratch, lo, hi - lo);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		//the halves are sorted into the other array, so merging them writes into the target
+		sortSequentially(a, scratch, lo, mid, !toScratch);
+		sortSequentially(a, scratch, mid, hi, !toScratch);
+		if (toScratch) merge(a, lo, mid, a, mid, hi, scratch, lo);
+		else merge(scratch, lo, mid, scratch, mid, hi, a, lo);
+	}
+
+	private static void insertionSort(int[] a, int lo, int hi) {
+		for (int i = lo + 1; i < hi; i++) {
+			int value = a[i];
+			int j = i - 1;
+			while (j >= lo && a[j] > value) {
+				a[j + 1] = a[j];
+				j--;
+			}
+			a[j + 1] = value;
+		}
+	}
+
+	/**
+	 * Merges the sorted runs a[aLo, aHi) and b[bLo, bHi) into dst starting at dstLo.
+	 */
+	private static void merge(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, int[] dst, int dstLo) {
+		int i = aLo, j = bLo, k = dstLo;
+		while (i < aHi && j < bHi) {
+			dst[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+		}
+		if (i < aHi) System.arraycopy(a, i, dst, k, aHi - i);
+		if (j < bHi) System.arraycopy(b, j, dst, k, bHi - j);
+	}
+
+	/**
+	 * @return the first index in a[lo, hi) whose value is not less than value
+	 */
+	private static int lowerBound(int[] a, int lo, int hi, int value) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < value) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private static class SortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] a, scratch;
+		private final int lo, hi;
+		private final boolean toScratch;
+
+		SortTask(int[] a, int[] scratch, int lo, int hi, boolean toScratch) {
+			this.a = a;
+			this.scratch = scratch;
+			this.lo = lo;
+			this.hi = hi;
+			this.toScratch = toScratch;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= SEQUENTIAL_CUTOFF) {
+				sortSequentially(a, scratch, lo, hi, toScratch);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new SortTask(a, scratch, lo, mid, !toScratch), new SortTask(a, scratch, mid, hi, !toScratch));
+			int[] src = toScratch ? a : scratch, dst = toScratch ? scratch : a;
+			new MergeTask(src, lo, mid, mid, hi, dst, lo).compute();
+		}
+
+	}
+
+	/**
+	 * Merges the sorted runs src[lo1, hi1) and src[lo2, hi2) into dst starting at dstLo.
+	 */
+	private static class MergeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] src, dst;
+		private final int lo1, hi1, lo2, hi2, dstLo;
+
+		MergeTask(int[] src, int lo1, int hi1, int lo2, int hi2, int[] dst, int dstLo) {
+			this.src = src;
+			this.lo1 = lo1;
+			this.hi1 = hi1;
+			this.lo2 = lo2;
+			this.hi2 = hi2;
+			this.dst = dst;
+			this.dstLo = dstLo;
+		}
+
+		@Override
+		protected void compute() {
+			int length1 = hi1 - lo1, length2 = hi2 - lo2;
+			if (length1 + length2 <= SEQUENTIAL_CUTOFF) {
+				merge(src, lo1, hi1, src, lo2, hi2, dst, dstLo);
+				return;
+			}
+			if (length1 < length2) {	//split at the middle of the longer run, equal ints are indistinguishable so the runs may be swapped
+				new MergeTask(src, lo2, hi2, lo1, hi1, dst, dstLo).compute();
+				return;
+			}
+			//left: values <= split value, right: values >= split value
+			int split1 = (lo1 + hi1) >>> 1;
+			int split2 = lowerBound(src, lo2, hi2, src[split1]);
+			int rightDstLo = dstLo + (split1 - lo1) + (split2 - lo2);
+			invokeAll(new MergeTask(src, lo1, split1, lo2, split2, dst, dstLo),
+					new MergeTask(src, split1, hi1, split2, hi2, dst, rightDstLo));
+		}
+
+	}
+
+	public static void main(String[] args) {
+		int arr[] = {9,5,3,5,1,2,20};
+		ParallelMergeSort sorter = new ParallelMergeSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		int[] large = InputDistribution.RANDOM.generate(10000000, 42);
+		int[] expected = large.clone();
+		Arrays.sort(expected);
+		long start = System.nanoTime();
+		sorter.sort(large);
+		System.out.printf("Sorted %d ints with %d threads in %.1fms, correct: %b%n", large.length,
+				ForkJoinPool.commonPool().getParallelism(), (System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+	}
+
+}
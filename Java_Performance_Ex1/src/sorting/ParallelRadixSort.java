@@ -0,0 +1,155 @@
+package sorting;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link RadixSort} that splits the array into one block per thread of a {@link ForkJoinPool}.<br>
+ * Every pass first counts the histogram of each block in parallel. A prefix sum over (digit, block) then gives
+ * every block its own start index per digit, so the blocks scatter their ints in parallel without synchronization
+ * and the sort stays stable.<br>
+ * Arrays below {@value #SEQUENTIAL_CUTOFF} ints are sorted by a single thread.
+ */
+public class ParallelRadixSort implements Sorter {
+
+	private static final int SEQUENTIAL_CUTOFF = 1 << 16;
+	private static final int MIN_BLOCK_SIZE = 1 << 14;
+
+	private final ForkJoinPool pool;
+	private final RadixSort sequentialSorter = new RadixSort();
+	private final ThreadLocal<int[]> scratchBuffers = new ThreadLocal<>();
+
+	public ParallelRadixSort() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelRadixSort(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void sort(int[] input) {
+		if (input.length < SEQUENTIAL_CUTOFF) {
+			sequentialSorter.sort(input);
+			return;
+		}
+		int[] scratch = scratchBuffers.get();
+		if (scratch == null || scratch.length < input.length) {
+			scratch = new int[input.length];
+			scratchBuffers.set(scratch);
+		}
+		sort(input, scratch);
+	}
+
+	/**
+	 * @param scratch - buffer with at least the length of input, its content is overwritten
+	 */
+	public void sort(int[] input, int[] scratch) {
+		int n = input.length;
+		int blocks = Math.min(pool.getParallelism(), n / MIN_BLOCK_SIZE);
+		if (n < SEQUENTIAL_CUTOFF || blocks < 2) {
+			sequentialSorter.sort(input, scratch);
+			return;
+		}
+		if (scratch.length < n) {
+			throw new IllegalArgumentException("scratch buffer is shorter than the input: " + scratch.length + " < " + n);
+		}
+		int[] blockStarts = new int[blocks + 1];
+		for (int block = 0; block <= blocks; block++) {
+			blockStarts[block] = (int) ((long) n * block / blocks);
+		}
+		int[][] offsets = new int[blocks][RadixSort.RADIX];	//per block: counts, then the start index per digit
+		int[] totals = new int[RadixSort.RADIX];
+
+		int[] src = input, dst = scratch;
+		for (int pass = 0; pass < RadixSort.PASSES; pass++) {
+			int shift = pass * RadixSort.RADIX_BITS;
+			int[] from = src, to = dst;
+
+			forEachBlock(blocks, block -> {
+				int[] counts = offsets[block];
+				Arrays.fill(counts, 0);
+				for (int i = blockStarts[block]; i < blockStarts[block + 1]; i++) {
+					counts[((from[i] ^ Integer.MIN_VALUE) >>> shift) & (RadixSort.RADIX - 1)]++;
+				}
+			});
+
+			Arrays.fill(totals, 0);
+			for (int block = 0; block < blocks; block++) {
+				for (int digit = 0; digit < RadixSort.RADIX; digit++) {
+					totals[digit] += offsets[block][digit];
+				}
+			}
+			if (RadixSort.isSingleDigit(totals, n)) continue;
+			int sum = 0;
+			for (int digit = 0; digit < RadixSort.RADIX; digit++) {
+				for (int block = 0; block < blocks; block++) {
+					int count = offsets[block][digit];
+					offsets[block][digit] = sum;
+					sum += count;
+				}
+			}
+
+			forEachBlock(blocks, block -> {
+				int[] blockOffsets = offsets[block];
+				for (int i = blockStarts[block]; i < blockStarts[block + 1]; i++) {
+					int value = from[i];
+					to[blockOffsets[((value ^ Integer.MIN_VALUE) >>> shift) & (RadixSort.RADIX - 1)]++] = value;
+				}
+			});
+			src = to;
+			dst = from;
+		}
+		if (src != input) System.arraycopy(src, 0, input, 0, n);
+	}
+
+	private void forEachBlock(int blocks, IntConsumer action) {
+		pool.invoke(new BlockTask(0, blocks, action));
+	}
+
+	/**
+	 * Runs the action for the blocks [lo, hi), splitting the range in halves.
+	 */
+	private static class BlockTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int lo, hi;
+		private final IntConsumer action;
+
+		BlockTask(int lo, int hi, IntConsumer action) {
+			this.lo = lo;
+			this.hi = hi;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				action.accept(lo);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new BlockTask(lo, mid, action), new BlockTask(mid, hi, action));
+		}
+
+	}
+
+	public static void main(String[] args) {
+		int arr[] = {9,-5,3,5,Integer.MIN_VALUE,1,-2,20,Integer.MAX_VALUE};
+		ParallelRadixSort sorter = new ParallelRadixSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		int[] large = InputDistribution.RANDOM.generate(10000000, 42);
+		int[] expected = large.clone();
+		Arrays.sort(expected);
+		long start = System.nanoTime();
+		sorter.sort(large);
+		System.out.printf("Sorted %d ints with %d threads in %.1fms, correct: %b%n", large.length,
+				ForkJoinPool.commonPool().getParallelism(), (System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+	}
+
+}
@@ -0,0 +1,122 @@
+package sorting;
+
+import java.util.Arrays;
+
+/**
+ * LSD radix sort, sorts the ints byte by byte (least significant byte first) with a stable counting sort per byte.<br>
+ * The sign bit is flipped when computing the digits, so negative ints are ordered before positive ones.
+ * The histograms of all four bytes are counted in a single pass, and a byte is skipped if all ints have the same value in it
+ * (e.g. the high bytes of small ints).<br>
+ * The passes alternate between the array and a scratch buffer of the same size, like {@link ParallelMergeSort}.
+ */
+public class RadixSort implements Sorter {
+
+	static final int RADIX_BITS = 8;
+	static final int RADIX = 1 << RADIX_BITS;
+	static final int PASSES = Integer.SIZE / RADIX_BITS;
+	private static final int INSERTION_SORT_CUTOFF = 64;
+
+	private final ThreadLocal<int[]> scratchBuffers = new ThreadLocal<>();
+
+	@Override
+	public void sort(int[] input) {
+		if (input.length <= INSERTION_SORT_CUTOFF) {
+			insertionSort(input);
+			return;
+		}
+		int[] scratch = scratchBuffers.get();
+		if (scratch == null || scratch.length < input.length) {
+			scratch = new int[input.length];
+			scratchBuffers.set(scratch);
+		}
+		sort(input, scratch);
+	}
+
+	/**
+	 * @param scratch - buffer with at least the length of input, its content is overwritten
+	 */
+	public void sort(int[] input, int[] scratch) {
+		if (scratch.length < input.length) {
+			throw new IllegalArgumentException("scratch buffer is shorter than the input: " + scratch.length + " < " + input.length);
+		}
+		if (input.length <= INSERTION_SORT_CUTOFF) {
+			insertionSort(input);
+			return;
+		}
+		int n = input.length;
+		int[][] counts = new int[PASSES][RADIX];
+		for (int i = 0; i < n; i++) {
+			int key = input[i] ^ Integer.MIN_VALUE;
+			for (int pass = 0; pass < PASSES; pass++) {
+				counts[pass][(key >>> (pass * RADIX_BITS)) & (RADIX - 1)]++;
+			}
+		}
+
+		int[] src = input, dst = scratch;
+		for (int pass = 0; pass < PASSES; pass++) {
+			int[] offsets = counts[pass];
+			if (isSingleDigit(offsets, n)) continue;
+			toOffsets(offsets);
+			int shift = pass * RADIX_BITS;
+			for (int i = 0; i < n; i++) {
+				int value = src[i];
+				dst[offsets[((value ^ Integer.MIN_VALUE) >>> shift) & (RADIX - 1)]++] = value;
+			}
+			int[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+		if (src != input) System.arraycopy(src, 0, input, 0, n);
+	}
+
+	/**
+	 * @return true if all n ints have the same digit, so the pass would not move them
+	 */
+	static boolean isSingleDigit(int[] counts, int n) {
+		for (int count : counts) {
+			if (count == n) return true;
+			if (count != 0) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Turns the counts per digit into the start index of each digit (exclusive prefix sum).
+	 */
+	static void toOffsets(int[] counts) {
+		int sum = 0;
+		for (int digit = 0; digit < RADIX; digit++) {
+			int count = counts[digit];
+			counts[digit] = sum;
+			sum += count;
+		}
+	}
+
+	private static void insertionSort(int[] a) {
+		for (int i = 1; i < a.length; i++) {
+			int value = a[i];
+			int j = i - 1;
+			while (j >= 0 && a[j] > value) {
+				a[j + 1] = a[j];
+				j--;
+			}
+			a[j + 1] = value;
+		}
+	}
+
+	public static void main(String[] args) {
+		int arr[] = {9,-5,3,5,Integer.MIN_VALUE,1,-2,20,Integer.MAX_VALUE};
+		RadixSort sorter = new RadixSort();
+		sorter.sort(arr);
+		System.out.println(Arrays.toString(arr));
+
+		int[] large = InputDistribution.RANDOM.generate(10000000, 42);
+		int[] expected = large.clone();
+		Arrays.sort(expected);
+		long start = System.nanoTime();
+		sorter.sort(large);
+		System.out.printf("Sorted %d ints in %.1fms, correct: %b%n", large.length,
+				(System.nanoTime() - start) / 1e6, Arrays.equals(large, expected));
+	}
+
+}
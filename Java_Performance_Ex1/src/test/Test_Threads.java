@@ -0,0 +1,37 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Test_Threads {
+	
+	public static void main(String[] args) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> results = new ArrayList<>();
+		
+		for (int i = 0; i < 100; i++) {
+			final int n = 15 + i % 5;
+			results.add(pool.submit(() -> fib(n)));
+		}
+		
+		long sum = 0;
+		for (Future<Integer> result : results) {
+			sum += result.get();
+		}
+		pool.shutdown();
+		
+		System.out.println(sum);
+	}
+	
+	private static int fib(int n) {
+		if (n <= 1) {
+			return n;
+		} else {
+			return fib(n - 1) + fib(n - 2);
+		}
+	}
+	
+}